@@ -0,0 +1,185 @@
+package htlauncher.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Measurements shared by the benchmarks.
+ */
+public class Benchmarks {
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Code being measured, or preparing for it.
+	 */
+	public interface Operation {
+		void run() throws Exception;
+	}
+
+	/**
+	 * Throughput, latency and allocation of one measured operation.
+	 */
+	public static class Result {
+		private final String name;
+		// Time of each measured sample, which runs the operation batchSize times
+		private final long[] latencies;
+		private final int batchSize;
+		private final long allocatedBytes;
+		private final long gcCount;
+		private final long gcMillis;
+
+		private Result(String name, long[] latencies, int batchSize, long allocatedBytes, long gcCount,
+				long gcMillis) {
+			this.name = name;
+			this.latencies = latencies;
+			this.batchSize = batchSize;
+			this.allocatedBytes = allocatedBytes;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+			Arrays.sort(latencies);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return operations per second of measured time
+		 */
+		public double getThroughput() {
+			long total = 0;
+			for (long latency : latencies) {
+				total += latency;
+			}
+			return total == 0 ? 0 : (double) latencies.length * batchSize * 1e9 / total;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return the latency in nanoseconds that the given percentage of operations did not exceed
+		 */
+		public double getLatency(double percentile) {
+			int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return (double) latencies[Math.max(0, Math.min(latencies.length - 1, index))] / batchSize;
+		}
+
+		/**
+		 * @return bytes allocated on the heap per operation by the measuring thread
+		 */
+		public double getAllocatedBytesPerOperation() {
+			return (double) allocatedBytes / latencies.length / batchSize;
+		}
+
+		public long getGcCount() {
+			return gcCount;
+		}
+
+		public long getGcMillis() {
+			return gcMillis;
+		}
+
+		public static String header() {
+			return String.format("%-36s %12s %11s %11s %11s %14s %8s", "benchmark", "ops/s",
+					"p50 us", "p99 us", "max us", "alloc B/op", "gc ms");
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-36s %12.1f %11.1f %11.1f %11.1f %14.0f %8d", name, getThroughput(),
+					getLatency(50) / 1e3, getLatency(99) / 1e3, getLatency(100) / 1e3,
+					getAllocatedBytesPerOperation(), gcMillis);
+		}
+	}
+
+	/**
+	 * @return CPU time used by the current thread in nanoseconds
+	 */
+	public static long threadCpuTime() {
+		return threads.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * @return bytes allocated on the heap by the current thread, or 0 if the JVM cannot tell
+	 */
+	public static long threadAllocatedBytes() {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/**
+	 * Runs the operation warmup times unmeasured, then measures each of the given
+	 * number of runs separately. Only the operation is timed, not the setup before it.
+	 * @param name
+	 * @param warmup
+	 * @param iterations
+	 * @param setup run before every run of the operation; may be null
+	 * @param operation
+	 * @return the measurements
+	 */
+	public static Result measure(String name, int warmup, int iterations, Operation setup,
+			Operation operation) throws Exception {
+		return measure(name, 1, warmup, iterations, setup, operation);
+	}
+
+	/**
+	 * Like measure, but times batches of runs, for operations too quick to time one by one.
+	 * Latencies are the average of each batch.
+	 * @return the measurements, per run of the operation
+	 */
+	public static Result measureBatched(String name, int batchSize, int warmup, int iterations,
+			Operation operation) throws Exception {
+		Operation batch = () -> {
+			for (int i = 0; i < batchSize; i++) {
+				operation.run();
+			}
+		};
+		return measure(name, batchSize, warmup, iterations, null, batch);
+	}
+
+	private static Result measure(String name, int batchSize, int warmup, int iterations, Operation setup,
+			Operation operation) throws Exception {
+		for (int i = 0; i < warmup; i++) {
+			if (setup != null) {
+				setup.run();
+			}
+			operation.run();
+		}
+
+		long[] latencies = new long[iterations];
+		long allocated = 0;
+		long gcCountStart = gcCount();
+		long gcTimeStart = gcMillis();
+		for (int i = 0; i < iterations; i++) {
+			if (setup != null) {
+				setup.run();
+			}
+			long allocStart = threadAllocatedBytes();
+			long start = System.nanoTime();
+			operation.run();
+			latencies[i] = System.nanoTime() - start;
+			allocated += threadAllocatedBytes() - allocStart;
+		}
+		return new Result(name, latencies, batchSize, allocated, gcCount() - gcCountStart,
+				gcMillis() - gcTimeStart);
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+}
@@ -0,0 +1,105 @@
+package htlauncher.bench;
+
+import htlauncher.updater.CacheServer;
+import htlauncher.updater.DownloadProgress;
+import htlauncher.updater.DownloadRequest;
+import htlauncher.updater.FileDownloader;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the same release on many clients at once through a cache server in front of
+ * a loopback origin, and reports how many bytes the origin had to send.
+ *
+ * Usage: CacheServerBenchmark [clients] [components] [size in KB]
+ */
+public class CacheServerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int components = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int sizeKB = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+		LocalOrigin origin = new LocalOrigin();
+		Random random = new Random(42);
+		for (int i = 0; i < components; i++) {
+			byte[] content = new byte[sizeKB * 1024];
+			random.nextBytes(content);
+			origin.put("/component" + i + ".jar", content);
+		}
+
+		File dir = File.createTempFile("cache-benchmark", "");
+		dir.delete();
+		dir.mkdir();
+		CacheServer cache = new CacheServer(new File(dir, "cache"), 0);
+		cache.addAllowedHosts(Collections.singletonList(origin.uri("/").getHost()));
+		cache.start();
+		URI cacheURI = new URI("http://127.0.0.1:" + cache.getPort() + "/");
+
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		try {
+			long wallStart = System.nanoTime();
+			List<Future<?>> results = new ArrayList<>();
+			for (int c = 0; c < clients; c++) {
+				File clientDir = new File(dir, "client" + c);
+				clientDir.mkdir();
+				results.add(pool.submit(() -> {
+					FileDownloader downloader = new FileDownloader();
+					for (int i = 0; i < components; i++) {
+						URI source = origin.uri("/component" + i + ".jar");
+						download(downloader, CacheServer.toCacheURI(cacheURI, source), source,
+								new File(clientDir, "component" + i + ".jar"));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+			long wall = System.nanoTime() - wallStart;
+
+			long releaseBytes = (long) components * sizeKB * 1024;
+			System.out.printf("%d clients x %d KB: origin sent %d bytes (%.2fx release), cache sent %d bytes, %.1f ms%n",
+					clients, components * sizeKB, origin.getBytesServed(),
+					(double) origin.getBytesServed() / releaseBytes, cache.getServedBytes(), wall / 1e6);
+			System.out.println("cache " + cache);
+		} finally {
+			pool.shutdown();
+			cache.stop();
+			origin.stop();
+			delete(dir);
+		}
+	}
+
+	private static void download(FileDownloader downloader, URI cached, URI source, File dest) throws Exception {
+		DownloadRequest request = new DownloadRequest(cached, new URI(dest.getPath()));
+		List<URI> sources = new ArrayList<>();
+		sources.add(cached);
+		sources.add(source);
+		request.setSources(sources);
+		DownloadProgress progress = new DownloadProgress();
+		downloader.downloadFile(request, progress);
+		if (!progress.getDownloadSuccess()) {
+			throw new IllegalStateException("Download of " + source + " failed");
+		}
+		downloader.removeBackups();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
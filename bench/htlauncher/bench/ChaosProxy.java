@@ -0,0 +1,264 @@
+package htlauncher.bench;
+
+import htlauncher.updater.BandwidthLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP proxy on the loopback interface that forwards connections to a local server
+ * over an emulated network link: with added latency, a shared bandwidth cap, and
+ * stalls, resets and truncated responses drawn at random for every chunk forwarded
+ * from the server. Faults are drawn from a seeded generator, so that a run can be repeated.
+ *
+ * Latency is added once when connecting and once for every chunk sent to the server,
+ * which approximates one round trip per request.
+ */
+public class ChaosProxy {
+	// Bytes forwarded at once, and the unit for which faults are drawn
+	public static final int CHUNK_SIZE = 16 * 1024;
+
+	private final ServerSocket serverSocket;
+	private final InetSocketAddress target;
+	private final ExecutorService pool;
+	private final Random random;
+
+	private volatile long latency = 0;
+	private final BandwidthLimiter bandwidth = new BandwidthLimiter(0);
+	private volatile double stallProbability = 0;
+	private volatile long stallTime = 0;
+	private volatile double resetProbability = 0;
+	private volatile double truncateProbability = 0;
+
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong bytesToClient = new AtomicLong();
+	private final AtomicLong bytesToServer = new AtomicLong();
+	private final AtomicLong stalls = new AtomicLong();
+	private final AtomicLong resets = new AtomicLong();
+	private final AtomicLong truncations = new AtomicLong();
+
+	/**
+	 * Starts forwarding connections to the given local port.
+	 * @param targetPort
+	 * @param seed of the generator faults are drawn from
+	 */
+	public ChaosProxy(int targetPort, long seed) throws IOException {
+		target = new InetSocketAddress(InetAddress.getLoopbackAddress(), targetPort);
+		random = new Random(seed);
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		pool = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "chaos-proxy");
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.submit(this::acceptConnections);
+	}
+
+	/**
+	 * @return the URI of the given path on the server, through the proxy
+	 */
+	public URI uri(String path) {
+		try {
+			return new URI("http://127.0.0.1:" + serverSocket.getLocalPort() + path);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * @param millis added when connecting and to every chunk sent to the server
+	 */
+	public void setLatency(long millis) {
+		latency = Math.max(0, millis);
+	}
+
+	/**
+	 * @param bytesPerSecond shared by all connections, from the server to the client; 0 for no limit
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		bandwidth.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * @param probability of pausing before forwarding a chunk from the server
+	 * @param millis length of each pause
+	 */
+	public void setStalls(double probability, long millis) {
+		stallProbability = probability;
+		stallTime = millis;
+	}
+
+	/**
+	 * @param probability of resetting the connection instead of forwarding a chunk from the server
+	 */
+	public void setResetProbability(double probability) {
+		resetProbability = probability;
+	}
+
+	/**
+	 * @param probability of closing the connection cleanly instead of forwarding a chunk from
+	 * the server, which truncates the response being sent
+	 */
+	public void setTruncateProbability(double probability) {
+		truncateProbability = probability;
+	}
+
+	public long getConnections() {
+		return connections.get();
+	}
+
+	public long getBytesToClient() {
+		return bytesToClient.get();
+	}
+
+	public long getBytesToServer() {
+		return bytesToServer.get();
+	}
+
+	public long getStalls() {
+		return stalls.get();
+	}
+
+	public long getResets() {
+		return resets.get();
+	}
+
+	public long getTruncations() {
+		return truncations.get();
+	}
+
+	/**
+	 * Sets every counter back to zero.
+	 */
+	public void resetCounters() {
+		connections.set(0);
+		bytesToClient.set(0);
+		bytesToServer.set(0);
+		stalls.set(0);
+		resets.set(0);
+		truncations.set(0);
+	}
+
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		pool.shutdownNow();
+	}
+
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket client = serverSocket.accept();
+				connections.incrementAndGet();
+				pool.submit(() -> relay(client));
+			} catch (SocketException e) {
+				// Closed by stop
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void relay(Socket client) {
+		try (Socket server = new Socket()) {
+			sleep(latency);
+			server.connect(target);
+			client.setTcpNoDelay(true);
+			server.setTcpNoDelay(true);
+			pool.submit(() -> forwardToServer(client, server));
+			forwardToClient(server, client);
+		} catch (IOException e) {
+			// The client or the server went away
+		} finally {
+			closeQuietly(client);
+		}
+	}
+
+	private void forwardToServer(Socket client, Socket server) {
+		byte[] buffer = new byte[CHUNK_SIZE];
+		try {
+			InputStream in = client.getInputStream();
+			OutputStream out = server.getOutputStream();
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				sleep(latency);
+				out.write(buffer, 0, read);
+				bytesToServer.addAndGet(read);
+			}
+			server.shutdownOutput();
+		} catch (IOException e) {
+			closeQuietly(server);
+		}
+	}
+
+	private void forwardToClient(Socket server, Socket client) throws IOException {
+		byte[] buffer = new byte[CHUNK_SIZE];
+		InputStream in = server.getInputStream();
+		OutputStream out = client.getOutputStream();
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			double draw = nextDouble();
+			if (draw < resetProbability) {
+				resets.incrementAndGet();
+				// Closing with a zero linger time sends a reset instead of a clean close
+				client.setSoLinger(true, 0);
+				return;
+			}
+			draw -= resetProbability;
+			if (draw < truncateProbability) {
+				truncations.incrementAndGet();
+				return;
+			}
+			draw -= truncateProbability;
+			if (draw < stallProbability) {
+				stalls.incrementAndGet();
+				sleep(stallTime);
+			}
+			bandwidth.acquire(read);
+			out.write(buffer, 0, read);
+			bytesToClient.addAndGet(read);
+		}
+		client.shutdownOutput();
+	}
+
+	private double nextDouble() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+
+	private static void sleep(long millis) throws IOException {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+}
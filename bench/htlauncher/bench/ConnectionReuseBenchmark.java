@@ -0,0 +1,71 @@
+package htlauncher.bench;
+
+import htlauncher.updater.DownloadProgress;
+import htlauncher.updater.FileDownloader;
+import htlauncher.updater.HttpTransport;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Random;
+
+/**
+ * Downloads many small components from a loopback server the way an update does,
+ * starting with the connectivity probe, and reports how many connections the
+ * requests needed.
+ *
+ * Usage: ConnectionReuseBenchmark [components] [size in KB]
+ */
+public class ConnectionReuseBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int components = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int sizeKB = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+		LocalOrigin origin = new LocalOrigin();
+		Random random = new Random(42);
+		for (int i = 0; i < components; i++) {
+			byte[] content = new byte[sizeKB * 1024];
+			random.nextBytes(content);
+			origin.put("/component" + i + ".jar", content);
+		}
+		origin.put("/app.xml", new byte[512]);
+
+		File dir = File.createTempFile("connection-benchmark", "");
+		dir.delete();
+		dir.mkdir();
+		try {
+			HttpTransport transport = HttpTransport.getShared();
+			FileDownloader downloader = new FileDownloader();
+			downloader.setSegmentCount(1);
+
+			long wallStart = System.nanoTime();
+			if (!transport.probe(origin.uri("/app.xml"))) {
+				throw new IllegalStateException("Probe failed");
+			}
+			download(downloader, origin.uri("/app.xml"), new File(dir, "app.xml"));
+			for (int i = 0; i < components; i++) {
+				download(downloader, origin.uri("/component" + i + ".jar"), new File(dir, "component" + i + ".jar"));
+			}
+			long wall = System.nanoTime() - wallStart;
+
+			System.out.printf("requests %d, connections %d, %.1f ms%n", origin.getRequests(),
+					origin.getConnections(), wall / 1e6);
+			System.out.println("transport " + transport);
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+			origin.stop();
+		}
+	}
+
+	private static void download(FileDownloader downloader, URI source, File dest) throws Exception {
+		DownloadProgress progress = new DownloadProgress();
+		downloader.downloadFile(source, new URI(dest.getPath()), progress);
+		if (!progress.getDownloadSuccess()) {
+			throw new IllegalStateException("Download of " + source + " failed");
+		}
+		downloader.removeBackups();
+	}
+}
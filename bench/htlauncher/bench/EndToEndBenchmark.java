@@ -0,0 +1,420 @@
+package htlauncher.bench;
+
+import htlauncher.launcher.AppLauncher;
+import htlauncher.launcher.LauncherSettings;
+import htlauncher.updater.InstallGenerations;
+import htlauncher.updater.StorageManager;
+import htlauncher.utilities.Digest;
+import htlauncher.utilities.Version;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Runs the whole launcher, from start to the launch of the application, against a loopback
+ * origin behind a ChaosProxy, for a series of update scenarios on each of a few network profiles:
+ * the first run, a run with nothing to update, a new version of one component, and a new
+ * version of every component. Each run is a separate launcher process in a folder of its own,
+ * started headless, and the application it launches records when it was started.
+ *
+ * Reports for each run the time until the application was launched, the time until the
+ * launcher exited, the bytes sent to the launcher, the requests it made, the faults the
+ * proxy injected, and whether the newest install generation holds every published version.
+ * Retries are the requests made beyond those of the same run on the clean profile.
+ *
+ * Launcher settings to try are passed as system properties prefixed with "launcher.",
+ * such as -Dlauncher.downloadWorkers=8, and written to each run's launcher.properties.
+ *
+ * Usage: EndToEndBenchmark [components] [size in KB] [profiles...]
+ * Profiles are clean, slow and lossy; all of them are run if none is named.
+ */
+public class EndToEndBenchmark {
+	private static final String APP_NAME = "HubTurbo";
+	private static final String MAIN_JAR = "HubTurbo.jar";
+	private static final String SETTINGS_PREFIX = "launcher.";
+	private static final String LAUNCHER_LOG = "launcher.log";
+
+	// Longest a launcher may run before it is stopped and the run counted as failed
+	private static final long RUN_TIMEOUT = 10 * 60 * 1000;
+	// Longest to wait for the application to start after the launcher exited
+	private static final long LAUNCH_TIMEOUT = 30 * 1000;
+
+	private static final long SEED = 42;
+
+	/**
+	 * Network conditions between the launcher and the origin.
+	 */
+	private static class Profile {
+		final String name;
+		final long latency;
+		final long bandwidth;
+		final double stallProbability;
+		final long stallTime;
+		final double resetProbability;
+		final double truncateProbability;
+
+		Profile(String name, long latency, long bandwidth, double stallProbability, long stallTime,
+				double resetProbability, double truncateProbability) {
+			this.name = name;
+			this.latency = latency;
+			this.bandwidth = bandwidth;
+			this.stallProbability = stallProbability;
+			this.stallTime = stallTime;
+			this.resetProbability = resetProbability;
+			this.truncateProbability = truncateProbability;
+		}
+
+		void applyTo(ChaosProxy proxy) {
+			proxy.setLatency(latency);
+			proxy.setBandwidth(bandwidth);
+			proxy.setStalls(stallProbability, stallTime);
+			proxy.setResetProbability(resetProbability);
+			proxy.setTruncateProbability(truncateProbability);
+		}
+	}
+
+	private static final Profile[] PROFILES = {
+		new Profile("clean", 0, 0, 0, 0, 0, 0),
+		new Profile("slow", 50, 2 * 1024 * 1024, 0, 0, 0, 0),
+		new Profile("lossy", 20, 0, 0.01, 1000, 0.01, 0.01),
+	};
+
+	private static final String[] SCENARIOS = {"first run", "no-op", "single bump", "multi bump"};
+
+	private final int components;
+	private final int sizeKB;
+	private final Random random = new Random(SEED);
+
+	private final LocalOrigin origin;
+	private ChaosProxy proxy;
+
+	// Version of each component, and the requests of each run on the clean profile
+	private final int[] versions;
+	private final Map<String, Long> cleanRequests = new HashMap<>();
+
+	public EndToEndBenchmark(int components, int sizeKB) throws IOException {
+		this.components = components;
+		this.sizeKB = sizeKB;
+		this.versions = new int[components];
+		origin = new LocalOrigin();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int components = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int sizeKB = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+		List<String> names = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : null;
+
+		EndToEndBenchmark benchmark = new EndToEndBenchmark(components, sizeKB);
+		try {
+			System.out.printf("%-7s %-12s %10s %10s %12s %9s %8s %7s %7s %7s %s%n", "profile", "scenario",
+					"launch ms", "total ms", "bytes", "requests", "retries", "stalls", "resets", "truncs", "result");
+			for (Profile profile : PROFILES) {
+				if (names == null || names.contains(profile.name)) {
+					benchmark.run(profile);
+				}
+			}
+		} finally {
+			benchmark.stop();
+		}
+	}
+
+	public void stop() {
+		if (proxy != null) {
+			proxy.stop();
+		}
+		origin.stop();
+	}
+
+	/**
+	 * Publishes the first version of every component and installs it in the given folder
+	 * with a first run of the launcher over a clean link.
+	 * @return true if the app was installed
+	 */
+	boolean install(File dir) throws Exception {
+		proxy = new ChaosProxy(origin.uri("/").getPort(), SEED);
+		Arrays.fill(versions, 1);
+		publish();
+		writeInitialFiles(dir);
+		Process launcher = startLauncher(dir);
+		if (!launcher.waitFor(RUN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+			launcher.destroyForcibly();
+			return false;
+		}
+		return isUpdated(dir);
+	}
+
+	/**
+	 * Runs every scenario in order in a new launcher folder.
+	 */
+	private void run(Profile profile) throws Exception {
+		File dir = Files.createTempDirectory("end-to-end-" + profile.name).toFile();
+		proxy = new ChaosProxy(origin.uri("/").getPort(), SEED);
+		try {
+			profile.applyTo(proxy);
+			Arrays.fill(versions, 1);
+			publish();
+			writeInitialFiles(dir);
+
+			for (String scenario : SCENARIOS) {
+				if (scenario.equals("single bump")) {
+					versions[0]++;
+					publish();
+				} else if (scenario.equals("multi bump")) {
+					for (int i = 0; i < components; i++) {
+						versions[i]++;
+					}
+					publish();
+				}
+				runScenario(profile, scenario, dir);
+			}
+		} finally {
+			proxy.stop();
+			delete(dir);
+		}
+	}
+
+	private void runScenario(Profile profile, String scenario, File dir) throws Exception {
+		File marker = new File(dir, LaunchMarker.MARKER_FILE);
+		marker.delete();
+		proxy.resetCounters();
+		long requestsBefore = origin.getRequests();
+		File log = new File(dir, LAUNCHER_LOG);
+
+		long start = System.currentTimeMillis();
+		Process launcher = startLauncher(dir);
+		String result = "ok";
+		if (!launcher.waitFor(RUN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+			launcher.destroyForcibly();
+			result = "timed out";
+		} else if (launcher.exitValue() != 0) {
+			result = "exit " + launcher.exitValue();
+		}
+		long total = System.currentTimeMillis() - start;
+
+		long launchTime = waitForLaunch(marker);
+		if (launchTime < 0 && result.equals("ok")) {
+			result = "not launched";
+		} else if (!isUpdated(dir) && result.equals("ok")) {
+			result = "not updated";
+		}
+
+		long requests = origin.getRequests() - requestsBefore;
+		String key = scenario;
+		if (profile.name.equals("clean")) {
+			cleanRequests.put(key, requests);
+		}
+		Long clean = cleanRequests.get(key);
+		System.out.printf("%-7s %-12s %10s %10d %12d %9d %8s %7d %7d %7d %s%n", profile.name, scenario,
+				launchTime < 0 ? "-" : Long.toString(launchTime - start), total, proxy.getBytesToClient(),
+				requests, clean == null ? "-" : Long.toString(requests - clean), proxy.getStalls(),
+				proxy.getResets(), proxy.getTruncations(), result);
+		if (!result.equals("ok")) {
+			System.out.println(tail(log));
+		}
+	}
+
+	/**
+	 * Starts a headless launcher in the given folder, with its output going to a log there.
+	 */
+	static Process startLauncher(File dir) throws IOException {
+		return startJava(dir, AppLauncher.class.getName());
+	}
+
+	/**
+	 * Starts a headless JVM with the benchmark's class path in the given folder,
+	 * with its output going to a log there.
+	 */
+	static Process startJava(File dir, String... mainClassAndArgs) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		command.add("-Djava.awt.headless=true");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.addAll(Arrays.asList(mainClassAndArgs));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.directory(dir);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(dir, LAUNCHER_LOG)));
+		return builder.start();
+	}
+
+	/**
+	 * @return true if the newest generation, current or pending, holds the published version
+	 * of every component
+	 */
+	private boolean isUpdated(File dir) throws IOException {
+		File versionsFile = new File(new InstallGenerations(dir).getLatestDirectory(),
+				StorageManager.GENERATION_VERSIONS_FILE);
+		if (!versionsFile.exists()) {
+			return false;
+		}
+		Properties installed = new Properties();
+		try (InputStream in = new FileInputStream(versionsFile)) {
+			installed.load(in);
+		}
+		for (int i = 0; i < components; i++) {
+			String expected = new Version(versions[i], 0, 0).toString();
+			if (!expected.equals(installed.getProperty(getComponentName(i)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String getComponentName(int i) {
+		return i == 0 ? APP_NAME : "component" + i;
+	}
+
+	/**
+	 * @return the time at which the application was started, or -1 if it was not
+	 */
+	static long waitForLaunch(File marker) throws Exception {
+		long deadline = System.currentTimeMillis() + LAUNCH_TIMEOUT;
+		while (!marker.exists()) {
+			if (System.currentTimeMillis() > deadline) {
+				return -1;
+			}
+			Thread.sleep(20);
+		}
+		return Long.parseLong(new String(Files.readAllBytes(marker.toPath()), StandardCharsets.US_ASCII).trim());
+	}
+
+	/**
+	 * Serves the current version of every component and a descriptor listing them.
+	 * The main jar is a LaunchMarker, and the other components are random bytes.
+	 */
+	private void publish() throws Exception {
+		StringWriter xml = new StringWriter();
+		PrintWriter out = new PrintWriter(xml);
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+		out.println("<application URI=\"" + proxy.uri("/" + APP_NAME + ".xml") + "\" appName=\"" + APP_NAME + "\">");
+		out.println("    <components>");
+		for (int i = 0; i < components; i++) {
+			String name = getComponentName(i);
+			String localPath = name + ".jar";
+			String serverPath = "/v" + versions[i] + "/" + name + ".jar";
+			byte[] content = i == 0 ? createMainJar(versions[i]) : createComponent();
+			origin.put(serverPath, content);
+
+			out.println("        <component>");
+			out.println("            <name>" + name + "</name>");
+			out.println("            <localURI>" + localPath + "</localURI>");
+			out.println("            <serverURI>" + proxy.uri(serverPath) + "</serverURI>");
+			out.println("            <version><major>" + versions[i] + "</major><minor>0</minor><patch>0</patch></version>");
+			out.println("            <size>" + content.length + "</size>");
+			out.println("            <digest algorithm=\"" + Digest.DEFAULT_ALGORITHM + "\">"
+					+ Digest.toHex(MessageDigest.getInstance(Digest.DEFAULT_ALGORITHM).digest(content)) + "</digest>");
+			out.println("        </component>");
+		}
+		out.println("    </components>");
+		out.println("    <mainJAR>" + MAIN_JAR + "</mainJAR>");
+		out.println("</application>");
+		out.flush();
+		origin.put("/" + APP_NAME + ".xml", xml.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private byte[] createComponent() {
+		byte[] content = new byte[sizeKB * 1024];
+		random.nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * @return a runnable jar of LaunchMarker, which differs between versions
+	 */
+	private static byte[] createMainJar(int version) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, LaunchMarker.class.getName());
+		String classFile = LaunchMarker.class.getName().replace('.', '/') + ".class";
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JarOutputStream jar = new JarOutputStream(bytes, manifest);
+				InputStream in = LaunchMarker.class.getClassLoader().getResourceAsStream(classFile)) {
+			jar.putNextEntry(new JarEntry(classFile));
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				jar.write(buffer, 0, read);
+			}
+			jar.putNextEntry(new JarEntry("version"));
+			jar.write(Integer.toString(version).getBytes(StandardCharsets.US_ASCII));
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes the descriptor a launcher is distributed with, and the settings to try.
+	 */
+	private void writeInitialFiles(File dir) throws IOException {
+		Files.write(new File(dir, AppLauncher.APP_DESC_FILEPATH).toPath(),
+				fetch("/" + APP_NAME + ".xml"));
+
+		Map<String, String> settings = new LinkedHashMap<>();
+		// Keep every run's downloads to itself, rather than shared with other launchers of the user
+		settings.put(LauncherSettings.ARTIFACT_STORE, "none");
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(SETTINGS_PREFIX)) {
+				settings.put(name.substring(SETTINGS_PREFIX.length()), System.getProperty(name));
+			}
+		}
+		Properties properties = new Properties();
+		properties.putAll(settings);
+		try (OutputStream out = new FileOutputStream(new File(dir, LauncherSettings.SETTINGS_FILEPATH))) {
+			properties.store(out, null);
+		}
+	}
+
+	private byte[] fetch(String path) throws IOException {
+		try (InputStream in = origin.uri(path).toURL().openStream()) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toByteArray();
+		}
+	}
+
+	private static String tail(File log) throws IOException {
+		if (!log.exists()) {
+			return "";
+		}
+		List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+		return String.join(System.lineSeparator(), lines.subList(Math.max(0, lines.size() - 20), lines.size()));
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
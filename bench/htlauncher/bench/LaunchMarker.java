@@ -0,0 +1,26 @@
+package htlauncher.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stands in for the application in end-to-end benchmarks. It records when its JVM
+ * was started, which is when the launcher launched it, and exits.
+ */
+public class LaunchMarker {
+	// Written to the working directory
+	public static final String MARKER_FILE = "launched";
+
+	public static void main(String[] args) throws IOException {
+		long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+		File temp = new File(MARKER_FILE + ".tmp");
+		try (OutputStream out = new FileOutputStream(temp)) {
+			out.write(Long.toString(startTime).getBytes(StandardCharsets.US_ASCII));
+		}
+		temp.renameTo(new File(MARKER_FILE));
+	}
+}
@@ -0,0 +1,123 @@
+package htlauncher.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server on the loopback interface that serves files from memory.
+ * Supports HEAD, single byte ranges and ETag validators like the real origin.
+ */
+public class LocalOrigin {
+	private final HttpServer server;
+	private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+	private final AtomicLong bytesServed = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+
+	// Client ends of the connections requests arrived on
+	private final Set<SocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+	public LocalOrigin() throws IOException {
+		// Without this, responses on kept-alive connections wait for delayed ACKs
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "local-origin");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	public void put(String path, byte[] content) {
+		files.put(path, content);
+	}
+
+	public URI uri(String path) {
+		try {
+			return new URI("http://127.0.0.1:" + server.getAddress().getPort() + path);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	public long getBytesServed() {
+		return bytesServed.get();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of distinct connections requests arrived on
+	 */
+	public long getConnections() {
+		return connections.size();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		connections.add(exchange.getRemoteAddress());
+		byte[] content = files.get(exchange.getRequestURI().getPath());
+		if (content == null) {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+
+		String eTag = "\"" + Integer.toHexString(System.identityHashCode(content)) + "\"";
+		if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+		exchange.getResponseHeaders().add("ETag", eTag);
+		exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+
+		long start = 0;
+		long end = content.length - 1;
+		int status = 200;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+		if (range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(eTag))) {
+			String[] bounds = range.substring("bytes=".length()).split("-", -1);
+			start = Long.parseLong(bounds[0]);
+			if (!bounds[1].isEmpty()) {
+				end = Math.min(end, Long.parseLong(bounds[1]));
+			}
+			status = 206;
+			exchange.getResponseHeaders().add("Content-Range",
+					"bytes " + start + "-" + end + "/" + content.length);
+		}
+
+		long length = end - start + 1;
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().add("Content-Length", Long.toString(length));
+			exchange.sendResponseHeaders(status, -1);
+			exchange.close();
+			return;
+		}
+		exchange.sendResponseHeaders(status, length);
+		try (OutputStream body = exchange.getResponseBody()) {
+			body.write(content, (int) start, (int) length);
+		}
+		bytesServed.addAndGet(length);
+	}
+}
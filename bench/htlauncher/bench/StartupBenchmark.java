@@ -0,0 +1,82 @@
+package htlauncher.bench;
+
+import htlauncher.updater.InstallGenerations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the launcher takes on a warm install to start the application,
+ * against a JVM that starts the application as soon as it is running. The difference
+ * is the launcher's own work before the launch.
+ *
+ * Usage: StartupBenchmark [iterations]
+ */
+public class StartupBenchmark {
+	private static final int WARMUP_ITERATIONS = 2;
+	private static final long RUN_TIMEOUT = 60 * 1000;
+
+	/**
+	 * Starts the application given as its argument straight away, as a launcher with nothing else to do would.
+	 */
+	public static class Spawn {
+		public static void main(String[] args) throws IOException {
+			Runtime.getRuntime().exec("java -jar " + args[0]);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+		File dir = Files.createTempDirectory("startup-benchmark").toFile();
+		EndToEndBenchmark install = new EndToEndBenchmark(4, 64);
+		try {
+			if (!install.install(dir)) {
+				throw new IllegalStateException("Cannot install the application in " + dir);
+			}
+			String launchPath = new InstallGenerations(dir).getCurrentDirectory().getName() + "/HubTurbo.jar";
+
+			System.out.printf("%-10s %10s %10s %10s%n", "start", "median ms", "min ms", "max ms");
+			report("jvm", measure(dir, iterations, Spawn.class.getName(), launchPath));
+			report("launcher", measure(dir, iterations));
+		} finally {
+			install.stop();
+			EndToEndBenchmark.delete(dir);
+		}
+	}
+
+	/**
+	 * @param mainClassAndArgs the JVM to start, or none for the launcher
+	 * @return the time from starting the JVM to the start of the application, for each iteration
+	 */
+	private static long[] measure(File dir, int iterations, String... mainClassAndArgs) throws Exception {
+		File marker = new File(dir, LaunchMarker.MARKER_FILE);
+		long[] times = new long[iterations];
+		for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+			marker.delete();
+			long start = System.currentTimeMillis();
+			Process process = mainClassAndArgs.length == 0 ? EndToEndBenchmark.startLauncher(dir)
+					: EndToEndBenchmark.startJava(dir, mainClassAndArgs);
+			long launchTime = EndToEndBenchmark.waitForLaunch(marker);
+			// Let the launcher finish checking for updates before the next run
+			if (!process.waitFor(RUN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				process.destroyForcibly();
+			}
+			if (launchTime < 0) {
+				throw new IllegalStateException("The application was not launched");
+			}
+			if (i >= 0) {
+				times[i] = launchTime - start;
+			}
+		}
+		return times;
+	}
+
+	private static void report(String name, long[] times) {
+		Arrays.sort(times);
+		System.out.printf("%-10s %10d %10d %10d%n", name, times[times.length / 2], times[0], times[times.length - 1]);
+	}
+}
@@ -0,0 +1,71 @@
+package htlauncher.bench;
+
+import htlauncher.updater.DownloadProgress;
+import htlauncher.updater.FileDownloader;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Random;
+
+/**
+ * Compares the buffered-stream copy loop of FileDownloader with its NIO engine.
+ * Downloads a file from a loopback server over a single connection and reports
+ * throughput, CPU time and heap allocation per downloaded MB.
+ *
+ * Usage: TransferBenchmark [size in MB] [iterations]
+ */
+public class TransferBenchmark {
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final double MB = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		byte[] content = new byte[sizeMB * 1024 * 1024];
+		new Random(42).nextBytes(content);
+		LocalOrigin origin = new LocalOrigin();
+		origin.put("/component.jar", content);
+
+		File dest = File.createTempFile("transfer-benchmark", ".jar");
+		try {
+			System.out.printf("%-8s %10s %12s %14s%n", "engine", "MB/s", "CPU ms/MB", "alloc KB/MB");
+			for (boolean useNio : new boolean[] {false, true}) {
+				run(origin.uri("/component.jar"), dest, useNio, WARMUP_ITERATIONS, sizeMB, false);
+				run(origin.uri("/component.jar"), dest, useNio, iterations, sizeMB, true);
+			}
+		} finally {
+			dest.delete();
+			origin.stop();
+		}
+	}
+
+	private static void run(URI source, File dest, boolean useNio, int iterations, int sizeMB,
+			boolean report) throws Exception {
+		FileDownloader downloader = new FileDownloader();
+		downloader.setSegmentCount(1);
+		downloader.setUseNioTransfer(useNio);
+		URI destination = new URI(dest.getPath());
+
+		long cpuStart = Benchmarks.threadCpuTime();
+		long allocStart = Benchmarks.threadAllocatedBytes();
+		long wallStart = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			DownloadProgress progress = new DownloadProgress();
+			downloader.downloadFile(source, destination, progress);
+			if (!progress.getDownloadSuccess()) {
+				throw new IllegalStateException("Download failed");
+			}
+			downloader.removeBackups();
+		}
+		long wall = System.nanoTime() - wallStart;
+		long cpu = Benchmarks.threadCpuTime() - cpuStart;
+		long alloc = Benchmarks.threadAllocatedBytes() - allocStart;
+
+		if (report) {
+			double totalMB = (double) sizeMB * iterations;
+			System.out.printf("%-8s %10.1f %12.3f %14.1f%n", useNio ? "nio" : "streams",
+					totalMB / (wall / 1e9), cpu / 1e6 / totalMB, alloc / 1024.0 / totalMB);
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package htlauncher.bench;
+
+import htlauncher.updater.DownloadProgress;
+import htlauncher.updater.FileDownloader;
+import htlauncher.updater.InstallGenerations;
+import htlauncher.updater.StateStore;
+import htlauncher.utilities.AppDescriptor;
+import htlauncher.utilities.AppDescriptorLoader;
+import htlauncher.utilities.Version;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures the hot paths of the updater, to compare changes to them against a baseline:
+ * downloads from a loopback server, version parsing and comparison, app descriptor
+ * loading, the updater state file, and staging and activating an install generation.
+ * Reports throughput, latency percentiles, heap allocation per operation and GC time.
+ *
+ * Usage: UpdaterBenchmarks [download] [version] [descriptor] [state] [generations]
+ * Runs every suite if none is named. Files are made in a temporary folder.
+ */
+public class UpdaterBenchmarks {
+	private static final int[] DOWNLOAD_SIZES_KB = {16, 1024, 16 * 1024};
+	private static final int[] DESCRIPTOR_COMPONENTS = {1, 10, 100, 1000, 10000};
+	private static final int[] STATE_RECORDS = {1, 32, 256};
+	private static final int[] TREE_FILES = {100, 1000, 10000};
+
+	private static final String[] ALL_SUITES = {"download", "version", "descriptor", "state", "generations"};
+
+	public static void main(String[] args) throws Exception {
+		Set<String> suites = new HashSet<>(Arrays.asList(args.length > 0 ? args : ALL_SUITES));
+		File dir = File.createTempFile("updater-benchmarks", "");
+		dir.delete();
+		dir.mkdir();
+		try {
+			System.out.println(Benchmarks.Result.header());
+			if (suites.contains("download")) {
+				benchmarkDownload(new File(dir, "download"));
+			}
+			if (suites.contains("version")) {
+				benchmarkVersion();
+			}
+			if (suites.contains("descriptor")) {
+				benchmarkDescriptor(new File(dir, "descriptor"));
+			}
+			if (suites.contains("state")) {
+				benchmarkState(new File(dir, "state"));
+			}
+			if (suites.contains("generations")) {
+				benchmarkGenerations(new File(dir, "generations"));
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	/**
+	 * FileDownloader.downloadFile from a loopback server, over one connection.
+	 */
+	private static void benchmarkDownload(File dir) throws Exception {
+		dir.mkdir();
+		LocalOrigin origin = new LocalOrigin();
+		try {
+			Random random = new Random(42);
+			FileDownloader downloader = new FileDownloader();
+			downloader.setSegmentCount(1);
+			URI dest = new URI(new File(dir, "component.jar").getPath());
+			for (int sizeKB : DOWNLOAD_SIZES_KB) {
+				byte[] content = new byte[sizeKB * 1024];
+				random.nextBytes(content);
+				String path = "/component" + sizeKB + ".jar";
+				origin.put(path, content);
+				URI source = origin.uri(path);
+				int iterations = Math.max(5, 4096 / sizeKB);
+				report(Benchmarks.measure("download " + sizeKB + " KB", iterations, iterations, null, () -> {
+					DownloadProgress progress = new DownloadProgress();
+					downloader.downloadFile(source, dest, progress);
+					if (!progress.getDownloadSuccess()) {
+						throw new IllegalStateException("Download of " + source + " failed");
+					}
+					downloader.removeBackups();
+				}));
+			}
+		} finally {
+			origin.stop();
+		}
+	}
+
+	private static void benchmarkVersion() throws Exception {
+		String[] texts = {"1.0.0", "V2.13.7", "10.4", "3.2.1-beta"};
+		Version[] versions = new Version[texts.length];
+		for (int i = 0; i < texts.length; i++) {
+			versions[i] = new Version(texts[i]);
+		}
+		// Results go into the sink so that the JIT cannot drop the work
+		int[] sink = new int[2];
+		report(Benchmarks.measureBatched("version parse", 10000, 20, 200, () -> {
+			sink[0] += new Version(texts[sink[1]++ & 3]).getMajor();
+		}));
+		report(Benchmarks.measureBatched("version compareTo", 100000, 20, 200, () -> {
+			sink[0] += versions[sink[1]++ & 3].compareTo(versions[0]);
+		}));
+		if (sink[0] == 42) {
+			System.out.println();
+		}
+	}
+
+	/**
+	 * AppDescriptor.unserialiseFromXMLFile (JAXB) against the streaming parser
+	 * and the snapshot that AppDescriptorLoader keeps next to the file.
+	 */
+	private static void benchmarkDescriptor(File dir) throws Exception {
+		dir.mkdir();
+		for (int components : DESCRIPTOR_COMPONENTS) {
+			File xml = new File(dir, "HubTurbo" + components + ".xml");
+			writeDescriptor(xml, components);
+			int iterations = Math.max(5, 20000 / components);
+
+			if (AppDescriptor.unserialiseFromXMLFile(xml) != null) {
+				report(Benchmarks.measure("descriptor jaxb " + components, iterations, iterations, null,
+						() -> AppDescriptor.unserialiseFromXMLFile(xml)));
+			} else {
+				System.out.println("descriptor jaxb " + components + ": skipped, JAXB cannot read the file");
+			}
+			report(Benchmarks.measure("descriptor stax " + components, iterations, iterations, null, () -> {
+				try (InputStream in = new BufferedInputStream(new FileInputStream(xml))) {
+					AppDescriptorLoader.parse(in);
+				}
+			}));
+			// The first load writes the snapshot that the measured ones read
+			AppDescriptorLoader.load(xml);
+			report(Benchmarks.measure("descriptor snapshot " + components, iterations, iterations, null, () -> {
+				if (AppDescriptorLoader.load(xml) == null) {
+					throw new IllegalStateException("Cannot load " + xml);
+				}
+			}));
+		}
+	}
+
+	private static void writeDescriptor(File file, int components) throws IOException {
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			out.println("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+			out.println("<application URI=\"http://127.0.0.1/HubTurbo.xml\" appName=\"HubTurbo\">");
+			out.println("    <mainJAR>HubTurbo.jar</mainJAR>");
+			out.println("    <components>");
+			for (int i = 0; i < components; i++) {
+				out.println("        <component>");
+				out.println("            <name>component" + i + "</name>");
+				out.println("            <localURI>lib/component" + i + ".jar</localURI>");
+				out.println("            <serverURI>http://127.0.0.1/component" + i + ".jar</serverURI>");
+				out.println("            <version><major>1</major><minor>" + (i % 10) + "</minor><patch>"
+						+ (i % 7) + "</patch></version>");
+				out.println("            <size>" + (1024 * (i + 1)) + "</size>");
+				out.println("            <digest algorithm=\"SHA-256\">"
+						+ String.format("%064x", i) + "</digest>");
+				out.println("        </component>");
+			}
+			out.println("    </components>");
+			out.println("</application>");
+		}
+	}
+
+	/**
+	 * Loading and appending to the updater state file, which StorageManager does at every start.
+	 */
+	private static void benchmarkState(File dir) throws Exception {
+		dir.mkdir();
+		for (int records : STATE_RECORDS) {
+			File file = new File(dir, "updater_state" + records);
+			StateStore store = new StateStore(file);
+			// Keep every record, so that loading reads the whole log
+			store.setCompactionThreshold(Integer.MAX_VALUE);
+			for (int i = 0; i < records; i++) {
+				store.append(stateRecord(i));
+			}
+			report(Benchmarks.measure("state load " + records + " records", 200, 1000, null, store::load));
+		}
+
+		File file = new File(dir, "updater_state");
+		StateStore store = new StateStore(file);
+		int[] next = new int[1];
+		report(Benchmarks.measure("state append", 50, 200, null, () -> store.append(stateRecord(next[0]++))));
+	}
+
+	private static StateStore.Record stateRecord(int i) {
+		StateStore.Record record = new StateStore.Record();
+		record.setAppDesc("http://127.0.0.1/HubTurbo.xml", "\"etag" + i + "\"", null, i);
+		for (int c = 0; c < 20; c++) {
+			record.getVersions().put("component" + c, new Version(1, i % 10, c));
+		}
+		return record;
+	}
+
+	/**
+	 * What StorageManager.moveLastDownload does at start after an update: staging the update
+	 * folder as a new generation over the current one, and activating it.
+	 */
+	private static void benchmarkGenerations(File dir) throws Exception {
+		dir.mkdir();
+		for (int files : TREE_FILES) {
+			File root = new File(dir, "root" + files);
+			File update = new File(root, "update");
+			root.mkdir();
+			InstallGenerations generations = new InstallGenerations(root);
+			generations.setRetainedGenerations(1);
+			// An installed generation holding the whole tree in folders of libraries,
+			// and updates that each replace a tenth as many jars next to them
+			fillTree(update, files, 0);
+			generations.stage(update);
+			generations.activatePending();
+
+			int[] run = new int[] {1};
+			int iterations = Math.max(3, 20000 / files);
+			report(Benchmarks.measure("move last download " + files + " files", 2, iterations, () -> {
+				generations.collectGarbage();
+				writeFiles(update, files / 10, run[0]++);
+			}, () -> {
+				generations.stage(update);
+				generations.activatePending();
+			}));
+		}
+	}
+
+	/**
+	 * Writes small files spread over folders of 100.
+	 */
+	private static void fillTree(File dir, int files, int run) throws IOException {
+		for (int folder = 0; folder * 100 < files; folder++) {
+			writeFiles(new File(dir, "lib" + folder), Math.min(100, files - folder * 100), run);
+		}
+	}
+
+	private static void writeFiles(File dir, int files, int run) throws IOException {
+		dir.mkdirs();
+		byte[] content = new byte[256];
+		for (int i = 0; i < files; i++) {
+			Arrays.fill(content, (byte) (i + run));
+			try (OutputStream out = new FileOutputStream(new File(dir, "file" + i + ".jar"))) {
+				out.write(content);
+			}
+		}
+	}
+
+	private static void report(Benchmarks.Result result) {
+		System.out.println(result);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
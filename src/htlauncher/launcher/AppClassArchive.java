@@ -0,0 +1,108 @@
+package htlauncher.launcher;
+
+import htlauncher.updater.StorageManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class data sharing archive of the launched app, kept in the install generation it was made for.
+ * The first launch of a generation is a training run, which writes the archive of the classes
+ * it loaded when the app exits. Later launches map the archive instead of loading those
+ * classes from the jars, which shortens the app's start.
+ *
+ * Archives are tied to the JVM that wrote them, its options and the app's jars, so each has
+ * a key naming the java executable, the rest of the command and the component versions of
+ * the generation. An archive whose key does not match is made again. JVMs older than
+ * Java 13 cannot write archives and ignore the option.
+ */
+public class AppClassArchive {
+	public static final String ARCHIVE_FILE = "app.jsa";
+	public static final String KEY_FILE = "app.jsa.key";
+
+	private final File generation;
+
+	/**
+	 * @param generation directory of the install generation the app is launched from
+	 */
+	public AppClassArchive(File generation) {
+		this.generation = generation;
+	}
+
+	/**
+	 * Prepares the archive for a launch.
+	 * @param command the options and arguments the JVM is given after the archive's options
+	 * @return the JVM options that use the archive, or that make the launch write it
+	 */
+	public List<String> getJvmOptions(List<String> command) {
+		File archive = new File(generation, ARCHIVE_FILE);
+		String archivePath = archive.getAbsoluteFile().toPath().normalize().toString();
+		File keyFile = new File(generation, KEY_FILE);
+		try {
+			String key = getKey(command);
+			if (archive.isFile() && keyFile.isFile()
+					&& key.equals(new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8))) {
+				return Arrays.asList("-XX:SharedArchiveFile=" + archivePath);
+			}
+
+			// Files of a new generation may be hard links to the previous one's, so they are
+			// replaced rather than written to
+			Files.deleteIfExists(archive.toPath());
+			File tempFile = new File(generation, KEY_FILE + ".tmp");
+			Files.write(tempFile.toPath(), key.getBytes(StandardCharsets.UTF_8));
+			Files.move(tempFile.toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ArrayList<>();
+		}
+		return Arrays.asList("-XX:+IgnoreUnrecognizedVMOptions", "-XX:ArchiveClassesAtExit=" + archivePath);
+	}
+
+	/**
+	 * @return the java executable the app is launched with, the command, and the component
+	 * versions of the generation
+	 */
+	private String getKey(List<String> command) throws IOException {
+		StringBuilder key = new StringBuilder();
+		File java = findJavaExecutable();
+		if (java != null) {
+			key.append(java.toPath().toRealPath()).append(' ')
+					.append(java.length()).append(' ')
+					.append(java.lastModified());
+		}
+		key.append('\n');
+		for (String part : command) {
+			key.append(part).append(' ');
+		}
+		key.append('\n');
+		File versions = new File(generation, StorageManager.GENERATION_VERSIONS_FILE);
+		if (versions.isFile()) {
+			key.append(new String(Files.readAllBytes(versions.toPath()), StandardCharsets.UTF_8));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the java executable found first on the path, which the app is launched with, or null
+	 */
+	private static File findJavaExecutable() {
+		String path = System.getenv("PATH");
+		if (path == null) {
+			return null;
+		}
+		String name = System.getProperty("os.name").startsWith("Windows") ? "java.exe" : "java";
+		for (String dir : path.split(File.pathSeparator)) {
+			File java = new File(dir, name);
+			if (java.isFile()) {
+				return java;
+			}
+		}
+		return null;
+	}
+}
@@ -1,12 +1,25 @@
 package htlauncher.launcher;
 
+import htlauncher.updater.CacheServer;
+import htlauncher.updater.InstallGenerations;
+import htlauncher.updater.StorageManager;
 import htlauncher.updater.UpdateManager;
+import htlauncher.utilities.AppDescriptor;
+import htlauncher.utilities.AppDescriptorLoader;
+import htlauncher.utilities.LaunchProfile;
 import htlauncher.utilities.Utilities;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Entry point.
@@ -23,47 +36,151 @@ public class AppLauncher {
 	// For use in testing.
 	public static final boolean UPDATE_APP_DESC = true;
 	
+	// Runs a cache server for the launchers of the local network instead of the app,
+	// optionally followed by the port to listen on
+	public static final String CACHE_SERVER_FLAG = "--cache-server";
+
+	// Keeps checking for updates until the app exits, as the daemon setting does
+	public static final String DAEMON_FLAG = "--daemon";
+	
+	private final LauncherSettings settings;
+
+	// If true, the launcher keeps checking for updates while the app is open
+	private boolean daemon;
+
+	// Process of the app once it has been launched
+	private Process appProcess;
+
+	// Created once the installed app has been launched, as it takes longer to start than the app
 	private UpdateManager updater;
 	
-	private HashMap<String, String> commandLineArgs = new HashMap<>();
+	// Passed to the app after the arguments of its launch profile, in the order they were added
+	private Map<String, String> commandLineArgs = new LinkedHashMap<>();
 
 	public static void main(String[] args) {
-		AppLauncher launcher = new AppLauncher();
+		LauncherSettings settings = LauncherSettings.load(new File(LauncherSettings.SETTINGS_FILEPATH));
+		if (args.length > 0 && CACHE_SERVER_FLAG.equals(args[0])) {
+			int port = args.length > 1 ? parsePort(args[1], settings.getCachePort()) : settings.getCachePort();
+			runCacheServer(settings, port);
+			return;
+		}
+		AppLauncher launcher = new AppLauncher(settings);
+		if (args.length > 0 && DAEMON_FLAG.equals(args[0])) {
+			launcher.setDaemon(true);
+		}
 		launcher.run();
 		System.exit(0);
 	}
 
 	public AppLauncher() {
+		this(LauncherSettings.load(new File(LauncherSettings.SETTINGS_FILEPATH)));
+	}
+
+	public AppLauncher(LauncherSettings settings) {
+		this.settings = settings;
+		this.daemon = settings.getDaemon();
+	}
+
+	/**
+	 * @param daemon if true, run keeps checking for updates until the app exits
+	 */
+	public void setDaemon(boolean daemon) {
+		this.daemon = daemon;
+	}
+
+	private UpdateManager getUpdater() {
+		if (updater == null) {
+			try {
+				updater = new UpdateManager(AppLauncher.APP_DESC_FILEPATH);
+				settings.applyTo(updater);
+			} catch (URISyntaxException e) {
+				// Should not happen. Means APP_DESC_FILEPATH is set wrongly
+				e.printStackTrace();
+				Utilities.showFatalErrorDialog(e);
+				System.exit(-1);
+			}
+		}
+		return updater;
+	}
+
+	/**
+	 * @return the port given on the command line, or the default if it is not a valid port
+	 */
+	private static int parsePort(String value, int defaultPort) {
 		try {
-			updater = new UpdateManager(AppLauncher.APP_DESC_FILEPATH);
-		} catch (URISyntaxException e) {
-			// Should not happen. Means APP_DESC_FILEPATH is set wrongly
+			int port = Integer.parseInt(value.trim());
+			if (port >= 0 && port <= 65535) {
+				return port;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		System.err.println("Ignoring port " + value + ": not a port number. Using " + defaultPort);
+		return defaultPort;
+	}
+
+	/**
+	 * Serves the app's files to the launchers of the local network until the process is stopped.
+	 * The host of the app descriptor is always allowed.
+	 */
+	private static void runCacheServer(LauncherSettings settings, int port) {
+		CacheServer server = new CacheServer(settings.getCacheFolder(), port);
+		settings.applyTo(server);
+		try {
+			server.addAllowedHosts(Collections.singletonList(new URI(APP_DESC_XML_URL).getHost()));
+			server.start();
+		} catch (URISyntaxException | IOException e) {
 			e.printStackTrace();
-			Utilities.showFatalErrorDialog(e);
 			System.exit(-1);
 		}
+		System.out.println("Cache server listening on port " + server.getPort()
+				+ ", caching in " + settings.getCacheFolder().getAbsolutePath());
 	}
 
 	public void run() {
-		// Launch the app if it exists.
-		boolean isAppRunning = launchAppIfPathExists();
+		// Launch the app if it exists, before starting the updater and Swing.
+		boolean isAppRunning = launchInstalledApp() || launchAppIfPathExists();
 
 		// If it doesn't exist, this must be the first time the updater is running.
 		// Perform an update, then try to launch the app again.
 		boolean isFirstRun = !isAppRunning;
-		boolean updateSuccessful = updater.runUpdate(isFirstRun);
-		
-		if (updateSuccessful) {
-			commandLineArgs.put("--updated-to", updater.getDownloadedVersion(updater.getAppName()));
+		UpdateManager updater = getUpdater();
+
+		// The daemon makes the first check itself, after a random wait
+		if (isFirstRun || !daemon) {
+			boolean updateSuccessful = updater.runUpdate(isFirstRun);
+
+			if (updateSuccessful) {
+				commandLineArgs.put("--updated-to", updater.getDownloadedVersion(updater.getAppName()));
+			}
 		}
 
 		if (isFirstRun) {
 			launchAppIfPathExists();
 		}
+
+		if (daemon && appProcess != null) {
+			UpdateDaemon updateDaemon = new UpdateDaemon(updater);
+			settings.applyTo(updateDaemon);
+			updateDaemon.run(appProcess);
+		}
+	}
+
+	/**
+	 * Launches the installed app from the files on disk, without starting the updater.
+	 * @return false if the updater has to install the app first
+	 */
+	private boolean launchInstalledApp() {
+		String launchPath = StorageManager.findInstalledLaunchPath(APP_DESC_FILEPATH);
+		if (launchPath == null) {
+			return false;
+		}
+		launchApp(launchPath);
+		return true;
 	}
 
 	public boolean launchAppIfPathExists() {
-		String launchPath = updater.getAppLaunchPath();
+		String launchPath = getUpdater().getAppLaunchPath();
 		if (launchPath.isEmpty()) {
 			return false;
 		}
@@ -76,24 +193,84 @@ public class AppLauncher {
 		}
 	}
 
+	/**
+	 * Starts the app with the launch profile chosen for this machine.
+	 * Paths are made absolute, so that the profile can start the app in another folder.
+	 */
 	private void launchApp(String launchPath) {
-		String command = "java -jar " + launchPath + " " + stringifyCommandLineArgs(commandLineArgs);
-		command = command.trim();
+		LaunchProfile profile = selectLaunchProfile();
+
+		List<String> command = new ArrayList<>();
+		if (profile != null) {
+			command.addAll(profile.getJvmOptions());
+		}
+		command.add("-jar");
+		command.add(new File(launchPath).getAbsolutePath());
+		if (settings.getClassDataSharing()) {
+			File generation = new InstallGenerations(new File(".")).getCurrentDirectory();
+			// Options of the profile come later, so that they can override these
+			command.addAll(0, new AppClassArchive(generation).getJvmOptions(command));
+		}
+		command.add(0, "java");
+		if (profile != null) {
+			command.addAll(profile.getArguments());
+		}
+		for (Map.Entry<String, String> arg : commandLineArgs.entrySet()) {
+			command.add(arg.getKey());
+			command.add(arg.getValue());
+		}
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.inheritIO();
+		if (profile != null) {
+			for (LaunchProfile.Variable variable : profile.getEnvironment()) {
+				builder.environment().put(variable.getName(), variable.getValue());
+			}
+			if (profile.getWorkingDirectory() != null) {
+				builder.directory(new File(profile.getWorkingDirectory()).getAbsoluteFile());
+			}
+		}
 		try {
-			Runtime.getRuntime().exec(command);
+			appProcess = builder.start();
 		} catch (IOException e) {
 			e.printStackTrace();
 			Utilities.showFatalErrorDialog(e);
 			System.exit(-1);
 		}
 	}
-	
-	private String stringifyCommandLineArgs(HashMap<String, String> args) {
-		StringBuilder result = new StringBuilder();
-		for (String key : args.keySet()) {
-			result.append(key).append(" ").append(args.get(key)).append(" ");
+
+	/**
+	 * @return the first launch profile of the app descriptor that this machine qualifies for,
+	 * or null if there is none
+	 */
+	private static LaunchProfile selectLaunchProfile() {
+		AppDescriptor descriptor = AppDescriptorLoader.load(new File(APP_DESC_FILEPATH));
+		if (descriptor == null) {
+			return null;
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		// Only looked up if a profile asks for it, as it takes a while the first time
+		Long memoryMB = null;
+		for (LaunchProfile profile : descriptor.getLaunchProfiles()) {
+			if (profile.getMinMemoryMB() > 0 && memoryMB == null) {
+				memoryMB = getPhysicalMemoryMB();
+			}
+			if (profile.matches(cores, memoryMB == null ? -1 : memoryMB)) {
+				return profile;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the physical memory of the machine in MB, or -1 if the JVM cannot tell
+	 */
+	private static long getPhysicalMemoryMB() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize() / (1024 * 1024);
 		}
-		return result.toString().trim();
+		return -1;
 	}
 
 }
@@ -0,0 +1,219 @@
+package htlauncher.launcher;
+
+import htlauncher.updater.CacheServer;
+import htlauncher.updater.RetryPolicy;
+import htlauncher.updater.UpdateManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Settings read from an optional properties file next to the launcher,
+ * so that a deployment can be tuned without rebuilding the launcher.
+ * Settings that are missing or malformed keep their defaults.
+ */
+public class LauncherSettings {
+	// Relative path to the settings file
+	public static final String SETTINGS_FILEPATH = "launcher.properties";
+
+	// Base URI of a cache server on the local network, such as http://cache:8321/
+	public static final String CACHE_SERVER = "cacheServer";
+
+	// Settings of the cache server run with --cache-server
+	public static final String CACHE_PORT = "cache.port";
+	public static final String CACHE_FOLDER = "cache.folder";
+	public static final String CACHE_ALLOWED_HOSTS = "cache.allowedHosts";
+	public static final String CACHE_REVALIDATE_AFTER = "cache.revalidateAfter";
+	public static final String CACHE_THREADS = "cache.threads";
+
+	public static final String DOWNLOAD_WORKERS = "downloadWorkers";
+	public static final String APP_DESC_TTL = "appDescTTL";
+	public static final String FOREGROUND_RATE_LIMIT = "foregroundRateLimit";
+	public static final String BACKGROUND_RATE_LIMIT = "backgroundRateLimit";
+	public static final String DOWNLOAD_RATE_LIMIT = "downloadRateLimit";
+	public static final String ARTIFACT_STORE = "artifactStore";
+	public static final String ARTIFACT_STORE_MAX_SIZE = "artifactStoreMaxSize";
+	public static final String MIRROR_PROBE_TTL = "mirrorProbeTTL";
+	public static final String RETRY_ATTEMPTS = "retry.attempts";
+	public static final String RETRY_DELAY = "retry.delay";
+	public static final String RETRY_MAX_DELAY = "retry.maxDelay";
+
+	// Whether the app is launched with a class data sharing archive of its own, true by default
+	public static final String CLASS_DATA_SHARING = "classDataSharing";
+
+	// Whether the launcher keeps checking for updates while the app is open, false by default
+	public static final String DAEMON = "daemon";
+
+	// Settings of the checks for updates while the app is open
+	public static final String DAEMON_INTERVAL = "daemon.interval";
+	public static final String DAEMON_JITTER = "daemon.jitter";
+	public static final String DAEMON_RETRY_DELAY = "daemon.retryDelay";
+	public static final String DAEMON_MAX_RETRY_DELAY = "daemon.maxRetryDelay";
+
+	// Value of artifactStore that turns the store off
+	private static final String NONE = "none";
+
+	private final Properties properties;
+
+	private LauncherSettings(Properties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * @param file
+	 * @return the settings in the file, or empty settings if there is no such file
+	 */
+	public static LauncherSettings load(File file) {
+		Properties properties = new Properties();
+		if (file.exists()) {
+			try (InputStream in = new FileInputStream(file)) {
+				properties.load(in);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return new LauncherSettings(properties);
+	}
+
+	/**
+	 * @param key
+	 * @return the trimmed value, or null if it is not set
+	 */
+	public String get(String key) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		return value.trim();
+	}
+
+	public long getLong(String key, long defaultValue) {
+		String value = get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			System.err.println("Ignoring " + key + "=" + value + ": not a number");
+			return defaultValue;
+		}
+	}
+
+	public int getInt(String key, int defaultValue) {
+		long value = getLong(key, defaultValue);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			System.err.println("Ignoring " + key + "=" + value + ": out of range");
+			return defaultValue;
+		}
+		return (int) value;
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = get(key);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	public boolean getClassDataSharing() {
+		return getBoolean(CLASS_DATA_SHARING, true);
+	}
+
+	public boolean getDaemon() {
+		return getBoolean(DAEMON, false);
+	}
+
+	/**
+	 * @return the cache server clients should download through, or null if there is none
+	 */
+	public URI getCacheServer() {
+		String value = get(CACHE_SERVER);
+		if (value == null) {
+			return null;
+		}
+		try {
+			return new URI(value.endsWith("/") ? value : value + "/");
+		} catch (URISyntaxException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public int getCachePort() {
+		return getInt(CACHE_PORT, CacheServer.DEFAULT_PORT);
+	}
+
+	public File getCacheFolder() {
+		String value = get(CACHE_FOLDER);
+		return new File(value == null ? CacheServer.DEFAULT_CACHE_FOLDER : value);
+	}
+
+	/**
+	 * @return the hosts the cache server may fetch from, in addition to the app descriptor's
+	 */
+	public List<String> getCacheAllowedHosts() {
+		List<String> hosts = new ArrayList<>();
+		String value = get(CACHE_ALLOWED_HOSTS);
+		if (value != null) {
+			for (String host : value.split(",")) {
+				if (!host.trim().isEmpty()) {
+					hosts.add(host.trim());
+				}
+			}
+		}
+		return hosts;
+	}
+
+	/**
+	 * Applies the update settings that are set.
+	 * @param updater
+	 */
+	public void applyTo(UpdateManager updater) {
+		updater.setDownloadWorkers(getInt(DOWNLOAD_WORKERS, UpdateManager.DEFAULT_DOWNLOAD_WORKERS));
+		updater.setAppDescTTL(getLong(APP_DESC_TTL, UpdateManager.DEFAULT_APP_DESC_TTL));
+		updater.setForegroundRateLimit(getLong(FOREGROUND_RATE_LIMIT, UpdateManager.DEFAULT_FOREGROUND_RATE_LIMIT));
+		updater.setBackgroundRateLimit(getLong(BACKGROUND_RATE_LIMIT, UpdateManager.DEFAULT_BACKGROUND_RATE_LIMIT));
+		updater.setDownloadRateLimit(getLong(DOWNLOAD_RATE_LIMIT, UpdateManager.DEFAULT_DOWNLOAD_RATE_LIMIT));
+		String artifactStore = get(ARTIFACT_STORE);
+		if (artifactStore != null) {
+			updater.setArtifactStore(NONE.equalsIgnoreCase(artifactStore) ? null : new File(artifactStore));
+		}
+		if (get(ARTIFACT_STORE_MAX_SIZE) != null) {
+			updater.setArtifactStoreMaxSize(getLong(ARTIFACT_STORE_MAX_SIZE, 0));
+		}
+		if (get(MIRROR_PROBE_TTL) != null) {
+			updater.setMirrorProbeTTL(getLong(MIRROR_PROBE_TTL, 0));
+		}
+		updater.setRetryAttempts(getInt(RETRY_ATTEMPTS, RetryPolicy.DEFAULT_ATTEMPTS));
+		updater.setRetryDelay(getLong(RETRY_DELAY, RetryPolicy.DEFAULT_DELAY));
+		updater.setMaxRetryDelay(getLong(RETRY_MAX_DELAY, RetryPolicy.DEFAULT_MAX_DELAY));
+		updater.setCacheServer(getCacheServer());
+	}
+
+	/**
+	 * Applies the cache server settings that are set.
+	 * @param server
+	 */
+	public void applyTo(CacheServer server) {
+		server.addAllowedHosts(getCacheAllowedHosts());
+		server.setRevalidateAfter(getLong(CACHE_REVALIDATE_AFTER, CacheServer.DEFAULT_REVALIDATE_AFTER));
+		server.setThreads(getInt(CACHE_THREADS, CacheServer.DEFAULT_THREADS));
+	}
+
+	/**
+	 * Applies the settings of the checks for updates while the app is open.
+	 * @param daemon
+	 */
+	public void applyTo(UpdateDaemon daemon) {
+		daemon.setInterval(getLong(DAEMON_INTERVAL, UpdateDaemon.DEFAULT_INTERVAL));
+		daemon.setJitter(getLong(DAEMON_JITTER, UpdateDaemon.DEFAULT_JITTER));
+		daemon.setRetryDelay(getLong(DAEMON_RETRY_DELAY, UpdateDaemon.DEFAULT_RETRY_DELAY));
+		daemon.setMaxRetryDelay(getLong(DAEMON_MAX_RETRY_DELAY, UpdateDaemon.DEFAULT_MAX_RETRY_DELAY));
+	}
+}
@@ -0,0 +1,122 @@
+package htlauncher.launcher;
+
+import htlauncher.updater.UpdateManager;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks for updates while the app is open, at a set interval, so that long sessions pick
+ * them up. Updates are staged as a new install generation, which the next start of the
+ * launcher activates without downloading anything.
+ *
+ * Every wait is lengthened by a random jitter, so that launchers started at the same time
+ * do not ask the server at the same time. After a failed check the wait starts at the retry
+ * delay and doubles with each failure in a row, up to the maximum retry delay.
+ */
+public class UpdateDaemon {
+	// Default time in milliseconds between checks
+	public static final long DEFAULT_INTERVAL = 60 * 60 * 1000;
+
+	// Default longest random time in milliseconds added to each wait, and waited before the first check
+	public static final long DEFAULT_JITTER = 10 * 60 * 1000;
+
+	// Default wait in milliseconds after the first failed check, and the longest wait after failed checks
+	public static final long DEFAULT_RETRY_DELAY = 60 * 1000;
+	public static final long DEFAULT_MAX_RETRY_DELAY = 60 * 60 * 1000;
+
+	// Shortest wait between checks, whatever the settings
+	private static final long MIN_WAIT = 1000;
+
+	private final UpdateManager updater;
+	private final Random random = new Random();
+
+	private long interval = DEFAULT_INTERVAL;
+	private long jitter = DEFAULT_JITTER;
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+	private long maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+
+	// Number of checks in a row that failed
+	private int failures = 0;
+
+	public UpdateDaemon(UpdateManager updater) {
+		this.updater = updater;
+	}
+
+	/**
+	 * Checks for updates until the app exits.
+	 * @param app the process of the app
+	 */
+	public void run(Process app) {
+		long wait = randomJitter(jitter);
+		try {
+			while (!app.waitFor(wait, TimeUnit.MILLISECONDS)) {
+				if (updater.runUpdate(false)) {
+					failures = 0;
+				} else {
+					failures++;
+				}
+				wait = getNextWait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the time to wait before the next check, given the number of failed checks in a row
+	 */
+	private long getNextWait() {
+		if (failures == 0) {
+			return Math.max(MIN_WAIT, interval + randomJitter(jitter));
+		}
+		long delay = maxRetryDelay;
+		// Stops doubling once the maximum is reached, before the shift can overflow
+		if (failures < 32 && retryDelay < (maxRetryDelay >> (failures - 1))) {
+			delay = retryDelay << (failures - 1);
+		}
+		return Math.max(MIN_WAIT, delay + randomJitter(Math.min(jitter, delay)));
+	}
+
+	/**
+	 * @return a random time from 0 up to the bound
+	 */
+	private long randomJitter(long bound) {
+		if (bound <= 0) {
+			return 0;
+		}
+		return (long) (random.nextDouble() * bound);
+	}
+
+	/**
+	 * Sets the time between checks.
+	 * @param millis
+	 */
+	public void setInterval(long millis) {
+		interval = Math.max(0, millis);
+	}
+
+	/**
+	 * Sets the longest random time added to each wait, which is also the longest wait before the first check.
+	 * @param millis
+	 */
+	public void setJitter(long millis) {
+		jitter = Math.max(0, millis);
+	}
+
+	/**
+	 * Sets the wait after the first failed check, which doubles with each further failure.
+	 * @param millis
+	 */
+	public void setRetryDelay(long millis) {
+		retryDelay = Math.max(0, millis);
+	}
+
+	/**
+	 * Sets the longest wait after failed checks.
+	 * @param millis
+	 */
+	public void setMaxRetryDelay(long millis) {
+		maxRetryDelay = Math.max(0, millis);
+	}
+}
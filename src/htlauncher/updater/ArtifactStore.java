@@ -0,0 +1,168 @@
+package htlauncher.updater;
+
+import htlauncher.utilities.Digest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Cache of downloaded files kept under their digest, so that a version that was
+ * downloaded once can be installed again without downloading it.
+ *
+ * Entries are stored as &lt;root&gt;/&lt;algorithm&gt;/&lt;first two hex digits&gt;/&lt;hex digest&gt;.
+ * They are never modified once added, which lets them be hard-linked into install
+ * folders, and are added with an atomic rename, which lets several launchers share
+ * one store. The last-modified time of an entry records when it was last used, and
+ * the least recently used entries are deleted once the store grows past its maximum size.
+ */
+public class ArtifactStore {
+	// Shared by all launchers of the same user
+	public static final String DEFAULT_STORE_FOLDER =
+			System.getProperty("user.home") + File.separator + ".htlauncher" + File.separator + "artifacts";
+
+	public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File root;
+	private long maxSize = DEFAULT_MAX_SIZE;
+
+	public ArtifactStore(File root) {
+		this.root = root;
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Looks up the file with the given digest, marking it as recently used.
+	 * @param digest
+	 * @param expectedSize -1 if unknown
+	 * @return the stored file, or null if it is not in the store
+	 */
+	public File find(Digest digest, long expectedSize) {
+		File entry = getEntry(digest);
+		if (entry == null || !entry.isFile()) {
+			return null;
+		}
+		if (expectedSize >= 0 && entry.length() != expectedSize) {
+			entry.delete();
+			return null;
+		}
+		entry.setLastModified(System.currentTimeMillis());
+		return entry;
+	}
+
+	/**
+	 * Adds a file whose digest has been verified, hard-linking it where the file system allows it.
+	 * Evicts the least recently used entries if the store grows past its maximum size.
+	 * @param file
+	 * @param digest
+	 */
+	public void add(File file, Digest digest) throws IOException {
+		File entry = getEntry(digest);
+		if (entry == null) {
+			return;
+		}
+		if (entry.isFile()) {
+			entry.setLastModified(System.currentTimeMillis());
+			return;
+		}
+		entry.getParentFile().mkdirs();
+		File temp = new File(entry.getPath() + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+		temp.delete();
+		copyOrLink(file, temp);
+		Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		entry.setLastModified(System.currentTimeMillis());
+		evict(entry);
+	}
+
+	/**
+	 * Sets the size above which the least recently used entries are deleted.
+	 * @param bytes
+	 */
+	public void setMaxSize(long bytes) {
+		maxSize = Math.max(0, bytes);
+	}
+
+	/**
+	 * Creates dest as a hard link to source, or as a copy of it if they cannot be linked.
+	 * @param source
+	 * @param dest must not exist
+	 */
+	static void copyOrLink(File source, File dest) throws IOException {
+		try {
+			Files.createLink(dest.toPath(), source.toPath());
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Deletes the least recently used entries until the store fits its maximum size.
+	 * @param keep entry that is never deleted
+	 */
+	private synchronized void evict(File keep) {
+		List<File> entries = new ArrayList<>();
+		long total = 0;
+		File[] algorithms = root.listFiles(File::isDirectory);
+		if (algorithms == null) {
+			return;
+		}
+		for (File algorithm : algorithms) {
+			File[] prefixes = algorithm.listFiles(File::isDirectory);
+			if (prefixes == null) {
+				continue;
+			}
+			for (File prefix : prefixes) {
+				File[] files = prefix.listFiles((dir, name) -> !name.endsWith(TEMP_SUFFIX));
+				if (files == null) {
+					continue;
+				}
+				for (File file : files) {
+					entries.add(file);
+					total += file.length();
+				}
+			}
+		}
+		if (total <= maxSize) {
+			return;
+		}
+
+		entries.sort(Comparator.comparingLong(File::lastModified));
+		for (File entry : entries) {
+			if (total <= maxSize) {
+				break;
+			}
+			if (entry.equals(keep)) {
+				continue;
+			}
+			long length = entry.length();
+			if (entry.delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	/**
+	 * @return the location of the entry for the digest, or null if the digest cannot name one
+	 */
+	private File getEntry(Digest digest) {
+		if (digest == null || digest.getValue() == null || digest.getAlgorithm() == null) {
+			return null;
+		}
+		String hex = digest.getValue().trim().toLowerCase();
+		String algorithm = digest.getAlgorithm().replaceAll("[^A-Za-z0-9]", "").toLowerCase();
+		if (hex.length() < 2 || !hex.matches("[0-9a-f]+") || algorithm.isEmpty()) {
+			return null;
+		}
+		return new File(new File(new File(root, algorithm), hex.substring(0, 2)), hex);
+	}
+}
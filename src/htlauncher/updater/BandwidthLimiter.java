@@ -0,0 +1,152 @@
+package htlauncher.updater;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Token bucket that limits the rate at which bytes are read.
+ * One limiter can be shared by any number of concurrent downloads, which then
+ * share its rate between them. The rate can be changed while downloads are running.
+ */
+public class BandwidthLimiter {
+	// Bytes that may be read at once after a pause, as a fraction of the rate
+	private static final double BURST_SECONDS = 0.1;
+
+	// Smallest read made through a limited channel
+	private static final int MIN_READ_SIZE = 4 * 1024;
+
+	// Bytes per second; 0 for no limit
+	private long rate;
+
+	// May go below zero when a read is larger than the tokens available
+	private double tokens = 0;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	public BandwidthLimiter(long bytesPerSecond) {
+		rate = Math.max(0, bytesPerSecond);
+	}
+
+	/**
+	 * @return the limit in bytes per second, or 0 if there is none
+	 */
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Changes the limit, including for downloads that are running.
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	public synchronized void setRate(long bytesPerSecond) {
+		refill();
+		rate = Math.max(0, bytesPerSecond);
+		tokens = Math.min(tokens, getBurstSize());
+		notifyAll();
+	}
+
+	/**
+	 * Takes the given number of bytes from the bucket, first waiting until it is no longer in debt.
+	 * @param bytes
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedIOException {
+		while (rate > 0) {
+			refill();
+			if (tokens >= 0) {
+				tokens -= bytes;
+				return;
+			}
+			long waitMillis = (long) Math.ceil(-tokens * 1000 / rate);
+			try {
+				wait(Math.max(1, waitMillis));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+			}
+		}
+	}
+
+	/**
+	 * @return the largest read that should be made at once, so that bytes arrive evenly
+	 */
+	synchronized int getMaxReadSize() {
+		if (rate <= 0) {
+			return Integer.MAX_VALUE;
+		}
+		return (int) Math.max(MIN_READ_SIZE, getBurstSize());
+	}
+
+	private double getBurstSize() {
+		return rate * BURST_SECONDS;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		if (rate > 0) {
+			tokens = Math.min(getBurstSize(), tokens + (now - lastRefill) * rate / 1e9);
+		}
+		lastRefill = now;
+	}
+
+	/**
+	 * Wraps a channel so that reading from it takes bytes from every given limiter.
+	 * @param source
+	 * @param limiters null entries are ignored
+	 */
+	public static ReadableByteChannel throttle(ReadableByteChannel source, BandwidthLimiter... limiters) {
+		return new ThrottledChannel(source, limiters);
+	}
+
+	private static class ThrottledChannel implements ReadableByteChannel {
+		private final ReadableByteChannel source;
+		private final BandwidthLimiter[] limiters;
+
+		ThrottledChannel(ReadableByteChannel source, BandwidthLimiter[] limiters) {
+			this.source = source;
+			this.limiters = limiters;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int maxRead = Integer.MAX_VALUE;
+			for (BandwidthLimiter limiter : limiters) {
+				if (limiter != null) {
+					maxRead = Math.min(maxRead, limiter.getMaxReadSize());
+				}
+			}
+			int limit = dst.limit();
+			if (dst.remaining() > maxRead) {
+				dst.limit(dst.position() + maxRead);
+			}
+			int bytesRead;
+			try {
+				bytesRead = source.read(dst);
+			} finally {
+				dst.limit(limit);
+			}
+			if (bytesRead > 0) {
+				for (BandwidthLimiter limiter : limiters) {
+					if (limiter != null) {
+						limiter.acquire(bytesRead);
+					}
+				}
+			}
+			return bytesRead;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return source.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+	}
+}
@@ -0,0 +1,600 @@
+package htlauncher.updater;
+
+import htlauncher.utilities.AppDescriptor;
+import htlauncher.utilities.AppDescriptorLoader;
+import htlauncher.utilities.ComponentDescriptor;
+import htlauncher.utilities.PatchDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP cache that lets the launchers of a local network download each file from the
+ * origin once between them.
+ *
+ * A file at scheme://host:port/path on the origin is requested from the cache as
+ * http://cache:port/scheme/host:port/path. The first request fetches it from the origin
+ * into the cache folder, and concurrent requests for the same file wait for that fetch
+ * rather than starting their own. Later requests are served from the folder, with byte
+ * ranges and the origin's validators, after checking with a conditional request that
+ * the file did not change once it is older than the revalidation interval. If the
+ * origin cannot be reached, the cached copy is served as it is.
+ *
+ * Only hosts that were allowed, and hosts named in app descriptors passing through
+ * the cache, are fetched from, so that the cache cannot be used as an open proxy.
+ */
+public class CacheServer {
+	public static final int DEFAULT_PORT = 8321;
+	public static final String DEFAULT_CACHE_FOLDER = "cache/";
+
+	// Default time in milliseconds after which a cached file is checked with the origin again
+	public static final long DEFAULT_REVALIDATE_AFTER = 60 * 1000;
+
+	// Default number of requests served at the same time
+	public static final int DEFAULT_THREADS = 32;
+
+	private static final String META_SUFFIX = ".meta";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String DESCRIPTOR_SUFFIX = ".xml";
+
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+	private static final String KEY_CHECK_TIME = "checkTime";
+
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	/**
+	 * A file in the cache with the origin's validators for it.
+	 */
+	private static class Entry {
+		private final File file;
+		private String eTag;
+		private String lastModified;
+		private long checkTime;
+
+		Entry(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * @return the entry stored for the file, or null if there is none
+		 */
+		static Entry load(File file) {
+			File metaFile = new File(file.getPath() + META_SUFFIX);
+			if (!file.isFile() || !metaFile.isFile()) {
+				return null;
+			}
+			Properties meta = new Properties();
+			try (InputStream in = new FileInputStream(metaFile)) {
+				meta.load(in);
+				Entry entry = new Entry(file);
+				entry.eTag = meta.getProperty(KEY_ETAG);
+				entry.lastModified = meta.getProperty(KEY_LAST_MODIFIED);
+				entry.checkTime = Long.parseLong(meta.getProperty(KEY_CHECK_TIME, "0"));
+				return entry;
+			} catch (IOException | NumberFormatException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		void save() throws IOException {
+			Properties meta = new Properties();
+			if (eTag != null) {
+				meta.setProperty(KEY_ETAG, eTag);
+			}
+			if (lastModified != null) {
+				meta.setProperty(KEY_LAST_MODIFIED, lastModified);
+			}
+			meta.setProperty(KEY_CHECK_TIME, Long.toString(checkTime));
+			File metaFile = new File(file.getPath() + META_SUFFIX);
+			File tempFile = new File(metaFile.getPath() + TEMP_SUFFIX);
+			try (OutputStream out = new FileOutputStream(tempFile)) {
+				meta.store(out, null);
+			}
+			Files.move(tempFile.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		/**
+		 * @return the origin's entity tag, or one made up from the file if the origin sent none
+		 */
+		String getServedETag() {
+			if (eTag != null) {
+				return eTag;
+			}
+			return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+		}
+	}
+
+	/**
+	 * The origin answered with a status other than 200 or 304.
+	 */
+	private static class UpstreamException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		UpstreamException(int status) {
+			super("Origin answered " + status);
+			this.status = status;
+		}
+	}
+
+	private final File folder;
+	private final int port;
+	private int threads = DEFAULT_THREADS;
+	private long revalidateAfter = DEFAULT_REVALIDATE_AFTER;
+
+	private final Set<String> allowedHosts = ConcurrentHashMap.newKeySet();
+
+	// One lock per cached file, held while it is fetched from the origin
+	private final Map<String, Object> fillLocks = new ConcurrentHashMap<>();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong fills = new AtomicLong();
+	private final AtomicLong upstreamBytes = new AtomicLong();
+	private final AtomicLong servedBytes = new AtomicLong();
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * @param folder where cached files are kept
+	 * @param port 0 to use any free port
+	 */
+	public CacheServer(File folder, int port) {
+		this.folder = folder;
+		this.port = port;
+	}
+
+	/**
+	 * Allows files to be fetched from the given hosts.
+	 * @param hosts
+	 */
+	public void addAllowedHosts(Collection<String> hosts) {
+		for (String host : hosts) {
+			allowedHosts.add(host.trim().toLowerCase());
+		}
+	}
+
+	/**
+	 * Sets the time after which a cached file is checked with the origin again.
+	 * @param millis 0 to check on every request
+	 */
+	public void setRevalidateAfter(long millis) {
+		revalidateAfter = Math.max(0, millis);
+	}
+
+	/**
+	 * Sets the number of requests served at the same time. Takes effect on start.
+	 * @param count
+	 */
+	public void setThreads(int count) {
+		threads = Math.max(1, count);
+	}
+
+	/**
+	 * Starts serving, first allowing the hosts of the app descriptors cached by an earlier run.
+	 */
+	public synchronized void start() throws IOException {
+		folder.mkdirs();
+		try (Stream<Path> files = Files.walk(folder.toPath())) {
+			files.filter(path -> path.toString().endsWith(DESCRIPTOR_SUFFIX))
+					.forEach(path -> allowDescriptorHosts(path.toFile()));
+		}
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	/**
+	 * @return the port the cache listens on
+	 */
+	public synchronized int getPort() {
+		return server == null ? port : server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the number of files fetched from an origin, not counting revalidations
+	 */
+	public long getFillCount() {
+		return fills.get();
+	}
+
+	/**
+	 * @return the number of bytes received from origins
+	 */
+	public long getUpstreamBytes() {
+		return upstreamBytes.get();
+	}
+
+	/**
+	 * @return the number of bytes sent to clients
+	 */
+	public long getServedBytes() {
+		return servedBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "requests=" + requests.get() + " fills=" + getFillCount() + " upstreamBytes="
+				+ getUpstreamBytes() + " servedBytes=" + getServedBytes();
+	}
+
+	/**
+	 * @param cacheServer base URI of the cache, such as http://cache:8321/
+	 * @param origin
+	 * @return the location of the origin's file on the cache, or null if the cache does not serve it
+	 */
+	public static URI toCacheURI(URI cacheServer, URI origin) {
+		String scheme = origin.getScheme();
+		if (origin.getHost() == null
+				|| !("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+			return null;
+		}
+		String authority = origin.getHost() + (origin.getPort() < 0 ? "" : ":" + origin.getPort());
+		String path = origin.getRawPath() == null || origin.getRawPath().isEmpty() ? "/" : origin.getRawPath();
+		String query = origin.getRawQuery() == null ? "" : "?" + origin.getRawQuery();
+		return cacheServer.resolve("/" + scheme.toLowerCase() + "/" + authority + path + query);
+	}
+
+	/**
+	 * @return the origin location of a file requested from the cache, or null if the request names none
+	 */
+	static URI toOriginURI(URI request) {
+		String path = request.getRawPath();
+		String[] parts = path.split("/", 4);
+		if (parts.length < 4 || !("http".equals(parts[1]) || "https".equals(parts[1]))) {
+			return null;
+		}
+		for (String segment : parts[3].split("/")) {
+			// Checked as the cache folder sees them, once escapes such as %2e%2e are decoded
+			String decoded = decodeSegment(segment);
+			if (decoded == null || decoded.equals("..") || decoded.equals(".")
+					|| decoded.contains("/") || decoded.contains("\\")) {
+				return null;
+			}
+		}
+		String query = request.getRawQuery() == null ? "" : "?" + request.getRawQuery();
+		try {
+			URI origin = new URI(parts[1] + "://" + parts[2] + "/" + parts[3] + query);
+			return origin.getHost() == null ? null : origin;
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the segment of a path with its escapes decoded, or null if it is malformed
+	 */
+	private static String decodeSegment(String segment) {
+		try {
+			// '+' stands for itself in a path, unlike in a form
+			return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+		} catch (IllegalArgumentException | UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			String method = exchange.getRequestMethod();
+			if (!"GET".equals(method) && !"HEAD".equals(method)) {
+				sendStatus(exchange, 405);
+				return;
+			}
+			URI origin = toOriginURI(exchange.getRequestURI());
+			if (origin == null) {
+				sendStatus(exchange, 404);
+				return;
+			}
+			if (!allowedHosts.contains(origin.getHost().toLowerCase())) {
+				sendStatus(exchange, 403);
+				return;
+			}
+
+			Entry entry;
+			try {
+				entry = getEntry(origin);
+			} catch (UpstreamException e) {
+				sendStatus(exchange, e.status);
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+				sendStatus(exchange, 502);
+				return;
+			}
+			serve(exchange, entry, "HEAD".equals(method));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return the cached copy of the origin's file, fetched or revalidated if needed
+	 * @throws IOException if there is no copy and the origin cannot provide one
+	 */
+	private Entry getEntry(URI origin) throws IOException {
+		File file = getCacheFile(origin);
+		if (file == null) {
+			// Not a location the cache can keep a file for
+			throw new UpstreamException(404);
+		}
+		synchronized (fillLocks.computeIfAbsent(file.getPath(), key -> new Object())) {
+			Entry entry = Entry.load(file);
+			long now = System.currentTimeMillis();
+			if (entry != null && now - entry.checkTime >= 0 && now - entry.checkTime < revalidateAfter) {
+				return entry;
+			}
+			try {
+				return fetch(origin, file, entry);
+			} catch (UpstreamException e) {
+				throw e;
+			} catch (IOException e) {
+				if (entry == null) {
+					throw e;
+				}
+				// The origin is unreachable; the copy we have is better than nothing
+				e.printStackTrace();
+				return entry;
+			}
+		}
+	}
+
+	/**
+	 * Fetches the file from the origin, or only checks it with a conditional request if there is a copy.
+	 */
+	private Entry fetch(URI origin, File file, Entry entry) throws IOException {
+		URLConnection connection = HttpTransport.getShared().open(origin);
+		if (!(connection instanceof HttpURLConnection)) {
+			throw new IOException("Not an HTTP origin: " + origin);
+		}
+		HttpURLConnection httpConnection = (HttpURLConnection) connection;
+		if (entry != null && entry.eTag != null) {
+			httpConnection.setRequestProperty("If-None-Match", entry.eTag);
+		}
+		if (entry != null && entry.lastModified != null) {
+			httpConnection.setRequestProperty("If-Modified-Since", entry.lastModified);
+		}
+		int status = httpConnection.getResponseCode();
+		if (status == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+			HttpTransport.getShared().release(httpConnection);
+			entry.checkTime = System.currentTimeMillis();
+			entry.save();
+			return entry;
+		}
+		if (status != HttpURLConnection.HTTP_OK) {
+			HttpTransport.getShared().release(httpConnection);
+			throw new UpstreamException(status);
+		}
+
+		file.getParentFile().mkdirs();
+		File tempFile = new File(file.getPath() + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+		long expectedLength = httpConnection.getContentLengthLong();
+		long length;
+		try (InputStream body = httpConnection.getInputStream()) {
+			length = Files.copy(body, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		upstreamBytes.addAndGet(length);
+		if (expectedLength >= 0 && length != expectedLength) {
+			tempFile.delete();
+			throw new IOException("Origin closed " + origin + " after " + length + " of " + expectedLength + " bytes");
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		fills.incrementAndGet();
+
+		Entry filled = new Entry(file);
+		filled.eTag = httpConnection.getHeaderField("ETag");
+		filled.lastModified = httpConnection.getHeaderField("Last-Modified");
+		filled.checkTime = System.currentTimeMillis();
+		filled.save();
+		if (file.getName().endsWith(DESCRIPTOR_SUFFIX)) {
+			allowDescriptorHosts(file);
+		}
+		return filled;
+	}
+
+	/**
+	 * Allows the hosts an app descriptor refers to, so that its components can be cached.
+	 */
+	private void allowDescriptorHosts(File file) {
+		AppDescriptor descriptor;
+		try (InputStream in = new FileInputStream(file)) {
+			descriptor = AppDescriptorLoader.parse(in);
+		} catch (Exception e) {
+			// Not an app descriptor
+			return;
+		}
+		List<URI> uris = new ArrayList<>();
+		uris.add(descriptor.getServerAppDescriptorURI());
+		uris.addAll(descriptor.getMirrors());
+		if (descriptor.getComponents() != null) {
+			for (ComponentDescriptor component : descriptor.getComponents()) {
+				uris.addAll(component.getSources());
+				uris.add(component.getChunkIndexURI());
+				for (PatchDescriptor patch : component.getPatches()) {
+					uris.add(patch.getServerURI());
+				}
+			}
+		}
+		for (URI uri : uris) {
+			if (uri != null && uri.getHost() != null) {
+				allowedHosts.add(uri.getHost().toLowerCase());
+			}
+		}
+	}
+
+	/**
+	 * Sends the cached file, or the requested byte range of it.
+	 */
+	private void serve(HttpExchange exchange, Entry entry, boolean headOnly) throws IOException {
+		String eTag = entry.getServedETag();
+		exchange.getResponseHeaders().add("ETag", eTag);
+		if (entry.lastModified != null) {
+			exchange.getResponseHeaders().add("Last-Modified", entry.lastModified);
+		}
+		exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+		if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			sendStatus(exchange, HttpURLConnection.HTTP_NOT_MODIFIED);
+			return;
+		}
+
+		long fileLength = entry.file.length();
+		long start = 0;
+		long end = fileLength - 1;
+		int status = HttpURLConnection.HTTP_OK;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+		if (range != null && (ifRange == null || ifRange.equals(eTag) || ifRange.equals(entry.lastModified))) {
+			long[] bounds = parseRange(range, fileLength);
+			if (bounds == null) {
+				exchange.getResponseHeaders().add("Content-Range", "bytes */" + fileLength);
+				sendStatus(exchange, HTTP_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			if (bounds.length == 2) {
+				start = bounds[0];
+				end = bounds[1];
+				status = HttpURLConnection.HTTP_PARTIAL;
+				exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + fileLength);
+			}
+		}
+
+		long length = end - start + 1;
+		if (headOnly) {
+			exchange.getResponseHeaders().add("Content-Length", Long.toString(length));
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		// A length of 0 means a chunked response to HttpServer, so empty files are sent as -1
+		exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+		try (FileChannel input = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+				OutputStream body = exchange.getResponseBody()) {
+			WritableByteChannel output = Channels.newChannel(body);
+			long position = start;
+			while (position <= end) {
+				long sent = input.transferTo(position, end - position + 1, output);
+				if (sent <= 0) {
+					break;
+				}
+				position += sent;
+				servedBytes.addAndGet(sent);
+			}
+		}
+	}
+
+	/**
+	 * Parses a Range header holding a single range.
+	 * @return inclusive first and last byte, an empty array to send the whole file,
+	 * or null if the range is not satisfiable
+	 */
+	private static long[] parseRange(String range, long fileLength) {
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return new long[0];
+		}
+		String[] bounds = range.substring("bytes=".length()).trim().split("-", -1);
+		try {
+			if (bounds.length != 2) {
+				return new long[0];
+			}
+			long start;
+			long end;
+			if (bounds[0].isEmpty()) {
+				// The last n bytes
+				long suffix = Long.parseLong(bounds[1]);
+				start = Math.max(0, fileLength - suffix);
+				end = fileLength - 1;
+			} else {
+				start = Long.parseLong(bounds[0]);
+				end = bounds[1].isEmpty() ? fileLength - 1 : Math.min(fileLength - 1, Long.parseLong(bounds[1]));
+			}
+			if (start >= fileLength || start > end) {
+				return null;
+			}
+			return new long[] {start, end};
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+	}
+
+	private static void sendStatus(HttpExchange exchange, int status) throws IOException {
+		exchange.sendResponseHeaders(status, -1);
+	}
+
+	/**
+	 * @return where the origin's file is kept: folder/scheme/host_port/path, with the query in the name,
+	 * or null if that would be outside the cache folder
+	 */
+	private File getCacheFile(URI origin) {
+		int port = origin.getPort();
+		String host = origin.getHost().toLowerCase() + (port < 0 ? "" : "_" + port);
+		String path = origin.getPath();
+		if (path == null || path.isEmpty() || path.endsWith("/")) {
+			path = (path == null ? "" : path) + "index";
+		}
+		if (origin.getRawQuery() != null) {
+			path += "_" + Integer.toHexString(origin.getRawQuery().hashCode());
+		}
+		File file = new File(new File(new File(folder, origin.getScheme().toLowerCase()), host), path);
+		// Names ending in our own suffixes would clash with the files that go with entries
+		if (file.getName().endsWith(META_SUFFIX) || file.getName().endsWith(TEMP_SUFFIX)) {
+			file = new File(file.getPath() + "_");
+		}
+		try {
+			if (!file.getCanonicalPath().startsWith(folder.getCanonicalPath() + File.separator)) {
+				return null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		return file;
+	}
+}
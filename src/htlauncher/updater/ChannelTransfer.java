@@ -0,0 +1,124 @@
+package htlauncher.updater;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Copies bytes from a channel into a file with NIO.
+ * File sources are copied with FileChannel.transferFrom. Other sources go through
+ * pooled direct buffers, of which each read uses a size that grows while single reads
+ * fill it and shrinks while they return much less, so slow sources cost small writes
+ * and fast sources few large ones.
+ * Progress is reported in steps of at least PROGRESS_INTERVAL bytes rather than per read.
+ */
+public class ChannelTransfer {
+	public static final int MIN_CHUNK_SIZE = 16 * 1024;
+	public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+	// Number of bytes copied between two progress reports
+	public static final long PROGRESS_INTERVAL = 64 * 1024;
+
+	// Largest number of bytes handed to a single transferFrom call
+	private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+
+	// Direct buffers are expensive to allocate, so they are reused across transfers
+	private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Receives the progress of a transfer.
+	 */
+	public interface Listener {
+		/**
+		 * @param bytes number of bytes written since the previous call
+		 */
+		void transferred(long bytes) throws IOException;
+	}
+
+	/**
+	 * Copies from the source into the file, starting at the given file position,
+	 * until the source ends or maxBytes have been copied.
+	 * @param source
+	 * @param file
+	 * @param position
+	 * @param maxBytes Long.MAX_VALUE to copy the whole source
+	 * @param digest updated with the copied bytes, may be null
+	 * @param listener
+	 * @return the number of bytes copied
+	 */
+	public static long transfer(ReadableByteChannel source, FileChannel file, long position,
+			long maxBytes, MessageDigest digest, Listener listener) throws IOException {
+		if (source instanceof FileChannel && digest == null) {
+			return transferFromFile((FileChannel) source, file, position, maxBytes, listener);
+		}
+
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			int chunkSize = MIN_CHUNK_SIZE;
+			long transferred = 0;
+			long unreported = 0;
+			while (transferred < maxBytes) {
+				buffer.clear();
+				buffer.limit((int) Math.min(chunkSize, maxBytes - transferred));
+				int bytesRead = source.read(buffer);
+				if (bytesRead < 0) {
+					break;
+				}
+				if (!buffer.hasRemaining()) {
+					// One read filled the chunk; the source has more ready than we ask for
+					chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+				} else if (bytesRead < chunkSize / 4) {
+					chunkSize = Math.max(chunkSize / 2, MIN_CHUNK_SIZE);
+				}
+
+				buffer.flip();
+				if (digest != null) {
+					digest.update(buffer);
+					buffer.rewind();
+				}
+				while (buffer.hasRemaining()) {
+					position += file.write(buffer, position);
+				}
+
+				transferred += bytesRead;
+				unreported += bytesRead;
+				if (unreported >= PROGRESS_INTERVAL) {
+					listener.transferred(unreported);
+					unreported = 0;
+				}
+			}
+			if (unreported > 0) {
+				listener.transferred(unreported);
+			}
+			return transferred;
+		} finally {
+			bufferPool.offer(buffer);
+		}
+	}
+
+	private static long transferFromFile(FileChannel source, FileChannel file, long position,
+			long maxBytes, Listener listener) throws IOException {
+		long transferred = 0;
+		while (transferred < maxBytes) {
+			long count = file.transferFrom(source, position + transferred,
+					Math.min(MAX_TRANSFER_SIZE, maxBytes - transferred));
+			if (count <= 0) {
+				break;
+			}
+			transferred += count;
+			listener.transferred(count);
+		}
+		return transferred;
+	}
+
+	private static ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = bufferPool.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(MAX_CHUNK_SIZE);
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,209 @@
+package htlauncher.updater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits a file into chunks at positions chosen by its content, and lists them with their digests.
+ *
+ * Chunk boundaries are found with a gear hash over the bytes just before each position,
+ * so an insertion or deletion only changes the chunks around it and the other chunks
+ * are the same as in the earlier version of the file. The server publishes an index
+ * for each component version, from which the updater fetches only the chunks it does
+ * not already have. Index format:
+ * <pre>
+ * "HTCHUNK1"  magic
+ * long        size of the file
+ * int         number of chunks
+ * int length, byte[32] SHA-256     one per chunk, in file order
+ * </pre>
+ */
+public class ChunkIndex {
+	private static final byte[] MAGIC = {'H', 'T', 'C', 'H', 'U', 'N', 'K', '1'};
+
+	public static final String CHUNK_DIGEST_ALGORITHM = "SHA-256";
+	public static final int CHUNK_DIGEST_LENGTH = 32;
+
+	public static final int MIN_CHUNK_SIZE = 2 * 1024;
+	public static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+	// A boundary is placed where the top 13 bits of the hash are zero, giving 8 KB chunks on average
+	private static final long BOUNDARY_MASK = ((1L << 13) - 1) << 51;
+
+	// Random values mixed into the hash for each byte value; fixed so that all indexes agree
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x48544348554E4BL);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * A byte range of the file.
+	 */
+	public static class Chunk {
+		private final long offset;
+		private final int length;
+		private final byte[] digest;
+
+		public Chunk(long offset, int length, byte[] digest) {
+			this.offset = offset;
+			this.length = length;
+			this.digest = digest;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the SHA-256 digest of the chunk's bytes
+		 */
+		public byte[] getDigest() {
+			return digest;
+		}
+	}
+
+	private final long fileSize;
+	private final List<Chunk> chunks;
+
+	private ChunkIndex(long fileSize, List<Chunk> chunks) {
+		this.fileSize = fileSize;
+		this.chunks = Collections.unmodifiableList(chunks);
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public List<Chunk> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * Creates the index of a component version: java htlauncher.updater.ChunkIndex file index-file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: ChunkIndex <file> <index file>");
+			System.exit(1);
+		}
+		ChunkIndex index = create(new File(args[0]));
+		try (OutputStream out = new FileOutputStream(args[1])) {
+			index.write(out);
+		}
+	}
+
+	/**
+	 * Splits the file into chunks.
+	 * @param file
+	 */
+	public static ChunkIndex create(File file) throws IOException {
+		MessageDigest digest = createChunkDigest();
+		List<Chunk> chunks = new ArrayList<>();
+		byte[] block = new byte[MAX_CHUNK_SIZE];
+		long offset = 0;
+		int length = 0;
+		long hash = 0;
+		try (InputStream input = new FileInputStream(file)) {
+			int bytesRead;
+			while ((bytesRead = input.read(block)) > 0) {
+				int chunkStart = 0;
+				for (int i = 0; i < bytesRead; i++) {
+					hash = (hash << 1) + GEAR[block[i] & 0xFF];
+					length++;
+					if ((length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) || length == MAX_CHUNK_SIZE) {
+						digest.update(block, chunkStart, i + 1 - chunkStart);
+						chunks.add(new Chunk(offset, length, digest.digest()));
+						offset += length;
+						length = 0;
+						hash = 0;
+						chunkStart = i + 1;
+					}
+				}
+				// The rest of the block belongs to a chunk that continues in the next block
+				digest.update(block, chunkStart, bytesRead - chunkStart);
+			}
+		}
+		if (length > 0) {
+			chunks.add(new Chunk(offset, length, digest.digest()));
+			offset += length;
+		}
+		return new ChunkIndex(offset, chunks);
+	}
+
+	/**
+	 * Reads an index written by write.
+	 * @throws IOException if the index is malformed
+	 */
+	public static ChunkIndex read(InputStream in) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(in));
+		byte[] magic = new byte[MAGIC.length];
+		input.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Not a chunk index");
+		}
+		long fileSize = input.readLong();
+		int count = input.readInt();
+		if (fileSize < 0 || count < 0) {
+			throw new IOException("Malformed chunk index");
+		}
+		List<Chunk> chunks = new ArrayList<>(count);
+		long offset = 0;
+		for (int i = 0; i < count; i++) {
+			int length = input.readInt();
+			if (length <= 0 || length > MAX_CHUNK_SIZE) {
+				throw new IOException("Malformed chunk index");
+			}
+			byte[] digest = new byte[CHUNK_DIGEST_LENGTH];
+			input.readFully(digest);
+			chunks.add(new Chunk(offset, length, digest));
+			offset += length;
+		}
+		if (offset != fileSize) {
+			throw new IOException("Chunk index does not cover the whole file");
+		}
+		return new ChunkIndex(fileSize, chunks);
+	}
+
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+		output.write(MAGIC);
+		output.writeLong(fileSize);
+		output.writeInt(chunks.size());
+		for (Chunk chunk : chunks) {
+			output.writeInt(chunk.getLength());
+			output.write(chunk.getDigest());
+		}
+		output.flush();
+	}
+
+	static MessageDigest createChunkDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(CHUNK_DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package htlauncher.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chunks available on this machine, found by splitting installed files the way
+ * ChunkIndex splits files on the server. Chunks are not copied; the store only
+ * records which file and offset each chunk digest can be read from.
+ */
+public class ChunkStore {
+
+	/**
+	 * Place in a local file where a chunk can be read.
+	 */
+	public static class Location {
+		private final File file;
+		private final long offset;
+		private final int length;
+
+		Location(File file, long offset, int length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+
+	// Keyed by the chunk digest
+	private final Map<ByteBuffer, Location> chunks = new HashMap<>();
+	private final Set<File> indexedFiles = new HashSet<>();
+
+	/**
+	 * Makes the chunks of the file available. Files are only split once.
+	 * @param file
+	 */
+	public synchronized void addFile(File file) throws IOException {
+		if (!file.isFile() || !indexedFiles.add(file.getAbsoluteFile())) {
+			return;
+		}
+		ChunkIndex index = ChunkIndex.create(file);
+		for (ChunkIndex.Chunk chunk : index.getChunks()) {
+			chunks.putIfAbsent(ByteBuffer.wrap(chunk.getDigest()),
+					new Location(file, chunk.getOffset(), chunk.getLength()));
+		}
+	}
+
+	/**
+	 * @param digest SHA-256 digest of a chunk
+	 * @return where the chunk can be read, or null if it is not available
+	 */
+	public synchronized Location find(byte[] digest) {
+		return chunks.get(ByteBuffer.wrap(digest));
+	}
+
+	public synchronized int size() {
+		return chunks.size();
+	}
+}
@@ -0,0 +1,175 @@
+package htlauncher.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a file from its chunk index, copying the chunks that are available locally
+ * and downloading the others with range requests.
+ * Neighbouring missing chunks are fetched with a single request.
+ */
+public class ChunkedDownload {
+	// Local bytes between two missing chunks that are downloaded again rather than splitting the request
+	public static final int MAX_RANGE_GAP = 16 * 1024;
+
+	private final URI source;
+	private final ChunkIndex index;
+	private final ChunkStore localChunks;
+	private final File target;
+	private final DownloadProgress progress;
+	private final BandwidthLimiter[] limiters;
+
+	private long bytesDone = 0;
+	private long bytesFetched = 0;
+
+	public ChunkedDownload(URI source, ChunkIndex index, ChunkStore localChunks, File target,
+			DownloadProgress progress, BandwidthLimiter[] limiters) {
+		this.source = source;
+		this.index = index;
+		this.localChunks = localChunks;
+		this.target = target;
+		this.progress = progress;
+		this.limiters = limiters;
+	}
+
+	/**
+	 * Writes the whole file to the target.
+	 * @return false if the server does not support range requests
+	 */
+	public boolean run() throws IOException {
+		progress.setTotalDownloadBytes(index.getFileSize());
+		progress.setBytesDownloaded(0);
+		try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+			file.setLength(index.getFileSize());
+			List<ChunkIndex.Chunk> missing = copyLocalChunks(file);
+			for (long[] range : planRanges(missing)) {
+				if (!fetchRange(file.getChannel(), range[0], range[1])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes downloaded, including local bytes fetched again to join ranges
+	 */
+	public long getBytesFetched() {
+		return bytesFetched;
+	}
+
+	/**
+	 * Copies every chunk whose local copy still has the expected digest.
+	 * @return the chunks that have to be downloaded
+	 */
+	private List<ChunkIndex.Chunk> copyLocalChunks(RandomAccessFile file) throws IOException {
+		List<ChunkIndex.Chunk> missing = new ArrayList<>();
+		Map<File, RandomAccessFile> sources = new HashMap<>();
+		MessageDigest digest = ChunkIndex.createChunkDigest();
+		byte[] buff = new byte[ChunkIndex.MAX_CHUNK_SIZE];
+		try {
+			for (ChunkIndex.Chunk chunk : index.getChunks()) {
+				ChunkStore.Location location = localChunks.find(chunk.getDigest());
+				if (location == null || !readChunk(sources, location, buff)) {
+					missing.add(chunk);
+					continue;
+				}
+				// The local file may have changed since it was split
+				digest.update(buff, 0, chunk.getLength());
+				if (!Arrays.equals(digest.digest(), chunk.getDigest())) {
+					missing.add(chunk);
+					continue;
+				}
+				file.seek(chunk.getOffset());
+				file.write(buff, 0, chunk.getLength());
+				bytesDone += chunk.getLength();
+				progress.setBytesDownloaded(bytesDone);
+			}
+		} finally {
+			for (RandomAccessFile sourceFile : sources.values()) {
+				sourceFile.close();
+			}
+		}
+		return missing;
+	}
+
+	private static boolean readChunk(Map<File, RandomAccessFile> sources, ChunkStore.Location location,
+			byte[] buff) {
+		try {
+			RandomAccessFile sourceFile = sources.get(location.getFile());
+			if (sourceFile == null) {
+				sourceFile = new RandomAccessFile(location.getFile(), "r");
+				sources.put(location.getFile(), sourceFile);
+			}
+			sourceFile.seek(location.getOffset());
+			sourceFile.readFully(buff, 0, location.getLength());
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Groups the missing chunks into byte ranges, joining chunks separated by less than MAX_RANGE_GAP.
+	 * @return inclusive first and last byte of each range
+	 */
+	private static List<long[]> planRanges(List<ChunkIndex.Chunk> missing) {
+		List<long[]> ranges = new ArrayList<>();
+		long[] current = null;
+		for (ChunkIndex.Chunk chunk : missing) {
+			long last = chunk.getOffset() + chunk.getLength() - 1;
+			if (current != null && chunk.getOffset() - current[1] - 1 <= MAX_RANGE_GAP) {
+				current[1] = last;
+			} else {
+				current = new long[] {chunk.getOffset(), last};
+				ranges.add(current);
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * @return false if the server did not return the requested range
+	 */
+	private boolean fetchRange(FileChannel file, long first, long last) throws IOException {
+		URLConnection connection = HttpTransport.getShared().open(source);
+		if (!(connection instanceof HttpURLConnection)) {
+			return false;
+		}
+		HttpURLConnection httpConnection = (HttpURLConnection) connection;
+		httpConnection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+		if (!FileDownloader.isRangeAccepted(httpConnection, first)) {
+			HttpTransport.getShared().release(httpConnection);
+			return false;
+		}
+
+		long length = last - first + 1;
+		long transferred;
+		try (ReadableByteChannel input = BandwidthLimiter.throttle(
+				Channels.newChannel(httpConnection.getInputStream()), limiters)) {
+			transferred = ChannelTransfer.transfer(input, file, first, length, null, bytes -> {
+				bytesFetched += bytes;
+				bytesDone += bytes;
+				// Gaps between chunks were already counted when they were copied locally
+				progress.setBytesDownloaded(Math.min(index.getFileSize(), bytesDone));
+			});
+		}
+		if (transferred != length) {
+			throw new IOException("Connection closed before the end of the requested range");
+		}
+		return true;
+	}
+}
@@ -0,0 +1,257 @@
+package htlauncher.updater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Creates and applies binary patches between two versions of a file.
+ *
+ * A patch is a gzip-compressed stream of instructions that rebuild the new file
+ * from the old one:
+ * <pre>
+ * "HTDELTA1"  magic
+ * long        size of the new file
+ * 'C' long offset, int length    copy bytes from the old file
+ * 'A' int length, bytes          add bytes that are not in the old file
+ * 'E'                            end of patch
+ * </pre>
+ * Patches are applied in a single pass over the patch, writing the new file sequentially.
+ */
+public class DeltaPatcher {
+	private static final byte[] MAGIC = {'H', 'T', 'D', 'E', 'L', 'T', 'A', '1'};
+	private static final int OP_COPY = 'C';
+	private static final int OP_ADD = 'A';
+	private static final int OP_END = 'E';
+
+	// Granularity at which the old file is matched when creating a patch
+	private static final int BLOCK_SIZE = 2048;
+
+	// Blocks with the same checksum compared byte by byte before giving up
+	private static final int MAX_CANDIDATES = 8;
+
+	/**
+	 * Creates a patch: java htlauncher.updater.DeltaPatcher old-file new-file patch-file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: DeltaPatcher <old file> <new file> <patch file>");
+			System.exit(1);
+		}
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[2]))) {
+			createPatch(new File(args[0]), new File(args[1]), out);
+		}
+	}
+
+	/**
+	 * Rebuilds the new file from the old file and a patch.
+	 * @param oldFile
+	 * @param patch
+	 * @param out receives the new file
+	 * @param digest updated with the bytes of the new file, may be null
+	 * @return the number of bytes written
+	 * @throws IOException if the patch is malformed or does not fit the old file
+	 */
+	public static long applyPatch(File oldFile, InputStream patch, OutputStream out,
+			MessageDigest digest) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(patch)));
+		byte[] magic = new byte[MAGIC.length];
+		input.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Not a patch file");
+		}
+		long expectedSize = input.readLong();
+
+		byte[] buff = new byte[FileDownloader.BUFFER_SIZE];
+		long written = 0;
+		try (RandomAccessFile old = new RandomAccessFile(oldFile, "r")) {
+			int op;
+			while ((op = input.read()) != OP_END) {
+				if (op == OP_COPY) {
+					long offset = input.readLong();
+					int length = input.readInt();
+					if (offset < 0 || length < 0 || offset + length > old.length()) {
+						throw new IOException("Patch does not fit " + oldFile);
+					}
+					old.seek(offset);
+					written += transfer(old, length, buff, out, digest);
+				} else if (op == OP_ADD) {
+					int length = input.readInt();
+					if (length < 0) {
+						throw new IOException("Malformed patch");
+					}
+					written += transfer(input, length, buff, out, digest);
+				} else {
+					throw new IOException("Malformed patch");
+				}
+			}
+		}
+		if (written != expectedSize) {
+			throw new IOException("Patch produced " + written + " bytes instead of " + expectedSize);
+		}
+		return written;
+	}
+
+	private static long transfer(DataInput source, int length, byte[] buff, OutputStream out,
+			MessageDigest digest) throws IOException {
+		int remaining = length;
+		while (remaining > 0) {
+			int chunk = Math.min(buff.length, remaining);
+			source.readFully(buff, 0, chunk);
+			out.write(buff, 0, chunk);
+			if (digest != null) {
+				digest.update(buff, 0, chunk);
+			}
+			remaining -= chunk;
+		}
+		return length;
+	}
+
+	/**
+	 * Writes a patch that turns oldFile into newFile.
+	 * Blocks of the old file are found anywhere in the new file with a rolling checksum.
+	 * @param oldFile
+	 * @param newFile
+	 * @param out
+	 */
+	public static void createPatch(File oldFile, File newFile, OutputStream out) throws IOException {
+		byte[] oldBytes = Files.readAllBytes(oldFile.toPath());
+		byte[] newBytes = Files.readAllBytes(newFile.toPath());
+		HashMap<Integer, List<Integer>> blocks = indexBlocks(oldBytes);
+
+		GZIPOutputStream compressed = new GZIPOutputStream(out);
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(compressed));
+		output.write(MAGIC);
+		output.writeLong(newBytes.length);
+
+		ByteArrayOutputStream literal = new ByteArrayOutputStream();
+		int pos = 0;
+		RollingChecksum checksum = new RollingChecksum(newBytes, 0, Math.min(BLOCK_SIZE, newBytes.length));
+		while (pos + BLOCK_SIZE <= newBytes.length) {
+			int match = findMatch(blocks.get(checksum.getValue()), oldBytes, newBytes, pos);
+			if (match < 0) {
+				literal.write(newBytes[pos]);
+				checksum.roll(newBytes, pos, pos + BLOCK_SIZE);
+				pos++;
+				continue;
+			}
+			int length = BLOCK_SIZE;
+			while (pos + length < newBytes.length && match + length < oldBytes.length
+					&& newBytes[pos + length] == oldBytes[match + length]) {
+				length++;
+			}
+			writeAdd(output, literal);
+			output.writeByte(OP_COPY);
+			output.writeLong(match);
+			output.writeInt(length);
+			pos += length;
+			if (pos + BLOCK_SIZE <= newBytes.length) {
+				checksum = new RollingChecksum(newBytes, pos, BLOCK_SIZE);
+			}
+		}
+		literal.write(newBytes, pos, newBytes.length - pos);
+		writeAdd(output, literal);
+		output.writeByte(OP_END);
+		output.flush();
+		compressed.finish();
+	}
+
+	private static HashMap<Integer, List<Integer>> indexBlocks(byte[] oldBytes) {
+		HashMap<Integer, List<Integer>> blocks = new HashMap<>();
+		for (int offset = 0; offset + BLOCK_SIZE <= oldBytes.length; offset += BLOCK_SIZE) {
+			int value = new RollingChecksum(oldBytes, offset, BLOCK_SIZE).getValue();
+			List<Integer> offsets = blocks.get(value);
+			if (offsets == null) {
+				offsets = new ArrayList<>();
+				blocks.put(value, offsets);
+			}
+			offsets.add(offset);
+		}
+		return blocks;
+	}
+
+	private static int findMatch(List<Integer> candidates, byte[] oldBytes, byte[] newBytes, int pos) {
+		if (candidates == null) {
+			return -1;
+		}
+		for (int i = 0; i < candidates.size() && i < MAX_CANDIDATES; i++) {
+			int offset = candidates.get(i);
+			if (regionMatches(oldBytes, offset, newBytes, pos, BLOCK_SIZE)) {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aOffset + i] != b[bOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeAdd(DataOutputStream output, ByteArrayOutputStream literal) throws IOException {
+		if (literal.size() == 0) {
+			return;
+		}
+		output.writeByte(OP_ADD);
+		output.writeInt(literal.size());
+		literal.writeTo(output);
+		literal.reset();
+	}
+
+	/**
+	 * Adler-32 style checksum over a window that can be moved one byte at a time.
+	 */
+	private static class RollingChecksum {
+		private static final int MOD = 65521;
+		private int a;
+		private int b;
+		private final int length;
+
+		RollingChecksum(byte[] data, int offset, int length) {
+			this.length = length;
+			a = 1;
+			b = 0;
+			for (int i = offset; i < offset + length; i++) {
+				a = (a + (data[i] & 0xFF)) % MOD;
+				b = (b + a) % MOD;
+			}
+		}
+
+		int getValue() {
+			return (b << 16) | a;
+		}
+
+		/**
+		 * Moves the window one byte forward.
+		 * @param removed index of the byte leaving the window
+		 * @param added index of the byte entering the window, may be past the end of data
+		 */
+		void roll(byte[] data, int removed, int added) {
+			int out = data[removed] & 0xFF;
+			int in = added < data.length ? data[added] & 0xFF : 0;
+			a = Math.floorMod(a - out + in, MOD);
+			b = Math.floorMod(b - length * out + a - 1, MOD);
+		}
+	}
+}
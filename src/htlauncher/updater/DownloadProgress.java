@@ -1,33 +1,117 @@
 package htlauncher.updater;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
- * POD class for tracking the progress of an arbitrary download.
+ * Tracks the progress of an arbitrary download.
+ *
+ * Safe to update from several download threads and to read from any thread.
+ * Updates on the copy loop only store the new count; listeners are told about
+ * changes at most once per notification interval, by whichever update comes
+ * first after it, and always when the download ends. Throughput is a moving
+ * average over the last few seconds, updated as it is sampled.
+ *
+ * A download that is part of a larger task, such as a whole update, can be given
+ * the task's progress as its parent, which then counts the bytes of all its downloads.
  */
 public class DownloadProgress {
-	private long totalDownloadBytes;
-	private long bytesDownloaded;
-	private boolean downloadCompleted;
-	private boolean downloadSuccess;
+	// Default minimum time in milliseconds between two notifications of the listeners
+	public static final long DEFAULT_NOTIFICATION_INTERVAL = 100;
+
+	// Time constant of the throughput average: older rates lose 63% of their weight per period
+	private static final double THROUGHPUT_TIME_CONSTANT = 3e9;
+
+	// Samples closer together than this are too noisy to take into the average
+	private static final long MIN_SAMPLE_INTERVAL = 50000000;
+
+	/**
+	 * Told about changes to a download's progress.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the thread that updated the progress, so it must not block.
+		 * @param progress
+		 */
+		void progressChanged(DownloadProgress progress);
+	}
+
+	// Progress of the task this download is part of; may be null
+	private final DownloadProgress parent;
+
+	private final AtomicLong totalDownloadBytes = new AtomicLong(0);
+	// Bytes downloaded are the last count set plus the bytes added since, which
+	// threads add to separate cells so that they do not contend with each other
+	private volatile long bytesSet = 0;
+	private final LongAdder bytesAdded = new LongAdder();
+	private volatile boolean downloadCompleted = false;
+	private volatile boolean downloadSuccess = true;
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	private volatile long notificationInterval = DEFAULT_NOTIFICATION_INTERVAL * 1000000;
+	// Claimed with compareAndSet, so that only one thread notifies per interval
+	private final AtomicLong lastNotification = new AtomicLong(System.nanoTime());
+
+	// Throughput average, guarded by this
+	private long lastSampleTime = System.nanoTime();
+	private long lastSampleBytes = 0;
+	private double throughput = -1;
 
 	public DownloadProgress() {
-		downloadSuccess = true;
-		downloadCompleted = false;
+		this(null);
+	}
+
+	/**
+	 * @param parent progress of the task this download is part of, told about every change
+	 * in the bytes downloaded; may be null
+	 */
+	public DownloadProgress(DownloadProgress parent) {
+		this.parent = parent;
 	}
 
 	public long getTotalDownloadBytes() {
-		return totalDownloadBytes;
+		return totalDownloadBytes.get();
 	}
 
+	/**
+	 * @param bytes -1 if unknown
+	 */
 	public void setTotalDownloadBytes(long bytes) {
-		this.totalDownloadBytes = bytes;
+		totalDownloadBytes.set(bytes);
+		changed();
 	}
 
 	public long getBytesDownloaded() {
-		return bytesDownloaded;
+		return bytesSet + bytesAdded.sum();
 	}
 
+	/**
+	 * Sets the count of a download made by a single thread.
+	 * Must not be called while other threads add bytes.
+	 * @param bytes
+	 */
 	public void setBytesDownloaded(long bytes) {
-		this.bytesDownloaded = bytes;
+		long change = bytes - getBytesDownloaded();
+		bytesAdded.reset();
+		bytesSet = bytes;
+		if (parent != null && change != 0) {
+			parent.addBytesDownloaded(change);
+		}
+		changed();
+	}
+
+	/**
+	 * Counts bytes received by one of several threads downloading parts of the same file.
+	 * @param bytes
+	 */
+	public void addBytesDownloaded(long bytes) {
+		bytesAdded.add(bytes);
+		if (parent != null) {
+			parent.addBytesDownloaded(bytes);
+		}
+		changed();
 	}
 
 	public boolean getDownloadCompleted() {
@@ -36,6 +120,7 @@ public class DownloadProgress {
 
 	public void setDownloadCompleted(boolean completed) {
 		this.downloadCompleted = completed;
+		notifyListeners();
 	}
 
 	public boolean getDownloadSuccess() {
@@ -44,12 +129,108 @@ public class DownloadProgress {
 
 	public void setDownloadSuccess(boolean success) {
 		this.downloadSuccess = success;
+		notifyListeners();
+	}
+
+	/**
+	 * @return true once the download completed or failed
+	 */
+	public boolean isFinished() {
+		return downloadCompleted || !downloadSuccess;
 	}
 
 	public double getDownloadedPercent() {
-		if (totalDownloadBytes == 0) {
+		long total = getTotalDownloadBytes();
+		if (total <= 0) {
 			return 0;
 		}
-		return 100.0 * bytesDownloaded / totalDownloadBytes;
+		return 100.0 * getBytesDownloaded() / total;
+	}
+
+	/**
+	 * @return the average bytes per second over the last few seconds, or -1 until it can be measured
+	 */
+	public synchronized double getThroughput() {
+		sample(System.nanoTime());
+		return throughput;
+	}
+
+	/**
+	 * @return the estimated seconds until the download completes, or -1 if unknown
+	 */
+	public double getSecondsRemaining() {
+		long total = getTotalDownloadBytes();
+		double rate = getThroughput();
+		if (total < 0 || rate <= 0) {
+			return -1;
+		}
+		return Math.max(0, total - getBytesDownloaded()) / rate;
+	}
+
+	/**
+	 * Subscribes to changes. The listener is called at most once per notification
+	 * interval while bytes arrive, and once more when the download ends.
+	 * @param listener
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Sets the minimum time between two notifications of the listeners while bytes arrive.
+	 * @param millis
+	 */
+	public void setNotificationInterval(long millis) {
+		notificationInterval = Math.max(0, millis) * 1000000;
+	}
+
+	/**
+	 * Notifies the listeners if the interval since the last notification has passed.
+	 * Cheap enough to call on every read of the copy loop.
+	 */
+	private void changed() {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		long last = lastNotification.get();
+		if (now - last < notificationInterval || !lastNotification.compareAndSet(last, now)) {
+			return;
+		}
+		for (Listener listener : listeners) {
+			listener.progressChanged(this);
+		}
+	}
+
+	private void notifyListeners() {
+		lastNotification.set(System.nanoTime());
+		for (Listener listener : listeners) {
+			listener.progressChanged(this);
+		}
+	}
+
+	/**
+	 * Takes the rate since the last sample into the moving average.
+	 */
+	private void sample(long now) {
+		long elapsed = now - lastSampleTime;
+		if (elapsed < MIN_SAMPLE_INTERVAL) {
+			return;
+		}
+		long bytes = getBytesDownloaded();
+		// Bytes going down means the download restarted, which says nothing about the rate
+		double rate = Math.max(0, bytes - lastSampleBytes) * 1e9 / elapsed;
+		if (throughput < 0) {
+			throughput = rate;
+		} else {
+			double weight = 1 - Math.exp(-elapsed / THROUGHPUT_TIME_CONSTANT);
+			throughput += weight * (rate - throughput);
+		}
+		lastSampleTime = now;
+		lastSampleBytes = bytes;
 	}
 }
@@ -1,62 +1,98 @@
 package htlauncher.updater;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import htlauncher.updater.ui.UpdateProgressWindow;
 
+import java.awt.GraphicsEnvironment;
+
 public class DownloadProgressDisplay {
-	//TODO: show update by time interval instead 
 	private static final String PROGRESS_DISPLAY_TEXT_FORMAT = "Downloading component: %1s";
-	private static final long UPDATE_PERIOD = 1000;
+	private static final double MEGABYTE = 1024 * 1024;
 	
-	private UpdateProgressWindow progressWindow;
+	// Created when first shown, so that updating in the background does not start Swing.
+	// Stays null without a display, in which case progress is not shown.
+	private volatile UpdateProgressWindow progressWindow;
 	private DownloadProgress progress = null;
-	private Timer updateTimer;
 
-	public DownloadProgressDisplay(){
-		progressWindow = new UpdateProgressWindow();
-	}
-	
-	public void showProgressWindow(){
-		progressWindow.setVisible(true);
+	// Last percentage sent to the window, so that it is only repainted when the bar moves
+	private volatile int displayedPercent = -1;
+
+	private final DownloadProgress.Listener listener = this::progressChanged;
+
+	public synchronized void showProgressWindow(){
+		if(progressWindow == null && !GraphicsEnvironment.isHeadless()){
+			progressWindow = new UpdateProgressWindow();
+		}
+		if(progressWindow != null){
+			progressWindow.setVisible(true);
+		}
 	}
 	
-	public void hideProgressWindow(){
-		progressWindow.setVisible(false);
+	public synchronized void hideProgressWindow(){
+		if(progressWindow != null){
+			progressWindow.setVisible(false);
+		}
 	}
 	
-	public void updateDownloadingComponent(String component){
-		progressWindow.setDisplayedText(String.format(PROGRESS_DISPLAY_TEXT_FORMAT, component));
+	public synchronized void updateDownloadingComponent(String component){
+		if(progressWindow != null){
+			progressWindow.setDisplayedText(String.format(PROGRESS_DISPLAY_TEXT_FORMAT, component));
+		}
 	}
 	
-	protected void startProgressDisplay(DownloadProgress progress){
+	/**
+	 * Shows the progress of the given download in place of the previous one.
+	 * The window is updated as the download reports progress, rather than polled.
+	 * @param progress
+	 */
+	protected synchronized void startProgressDisplay(DownloadProgress progress){
+		stopProgressDisplay();
+		if(progressWindow == null){
+			return;
+		}
 		this.progress = progress;
-		startDisplayUpdate();
+		displayedPercent = -1;
+		progress.addListener(listener);
+		progressChanged(progress);
 	}
-	
-	private void startDisplayUpdate(){
-		if(updateTimer != null){
-			stopProgressDisplay();
-		}
-		updateTimer = new Timer();
-		TimerTask updateTask = new TimerTask(){
-			@Override
-			public void run(){
-				int progressPercent = (int) Math.round(progress.getDownloadedPercent());
-				progressWindow.setProgress(progressPercent);
-				if(progressPercent == 100){
-					stopProgressDisplay();
-				}
-			}
-		};
-		updateTimer.scheduleAtFixedRate(updateTask, 0, UPDATE_PERIOD);
+
+	protected synchronized void stopProgressDisplay(){
+		if(progress != null){
+			progress.removeListener(listener);
+			progress = null;
+		}
+	}
+
+	private void progressChanged(DownloadProgress changed){
+		int progressPercent = (int) Math.round(changed.getDownloadedPercent());
+		if(progressPercent != displayedPercent){
+			displayedPercent = progressPercent;
+			progressWindow.setProgress(progressPercent);
+		}
+		progressWindow.setDetail(formatDetail(changed));
+		if(changed.isFinished()){
+			changed.removeListener(listener);
+		}
 	}
 
-	protected void stopProgressDisplay(){
-		if(updateTimer != null){
-			updateTimer.cancel();
-			updateTimer = null;
+	/**
+	 * @return the bytes downloaded, the rate and the time left, as far as they are known
+	 */
+	private static String formatDetail(DownloadProgress progress){
+		StringBuilder detail = new StringBuilder();
+		detail.append(String.format("%.1f", progress.getBytesDownloaded() / MEGABYTE));
+		long total = progress.getTotalDownloadBytes();
+		if(total > 0){
+			detail.append(String.format(" of %.1f", total / MEGABYTE));
+		}
+		detail.append(" MB");
+		double throughput = progress.getThroughput();
+		if(throughput >= 0){
+			detail.append(String.format(", %.1f MB/s", throughput / MEGABYTE));
+		}
+		double remaining = progress.getSecondsRemaining();
+		if(remaining >= 0 && !progress.isFinished()){
+			detail.append(String.format(", %d s left", (long) Math.ceil(remaining)));
 		}
+		return detail.toString();
 	}
 }
@@ -0,0 +1,232 @@
+package htlauncher.updater;
+
+import htlauncher.utilities.Digest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes a file to be downloaded by the FileDownloader.
+ * If validators from an earlier download are set, the file is only
+ * downloaded again if it changed on the server since then.
+ * If an expected size or digest is set, a file that does not match them is rejected.
+ * If mirrors are set, the download moves on to the next mirror when the current source fails.
+ */
+public class DownloadRequest {
+	private URI source;
+	private URI destination;
+
+	// Other locations of the same file, in the order they are tried
+	private List<URI> mirrors = new ArrayList<>();
+
+	// Validators of the copy of the file we already have, replaced with the
+	// server's validators once the download completes
+	private String eTag;
+	private String lastModified;
+
+	// Set if the server reported that the file did not change
+	private boolean notModified = false;
+
+	private long expectedSize = -1;
+	private Digest expectedDigest;
+
+	// Size the server reported for the file before the download, which is not checked
+	private long sizeHint = -1;
+
+	// Limit in bytes per second for this download alone; 0 for no limit
+	private long rateLimit = 0;
+
+	// If false, a failed download is not reported to the user, as it will be tried again
+	private boolean showErrors = true;
+
+	// Set if the download failed
+	private IOException failure;
+
+	public DownloadRequest(URI source, URI destination) {
+		this.source = source;
+		this.destination = destination;
+	}
+
+	public URI getSource() {
+		return source;
+	}
+
+	/**
+	 * Sets the locations of the file: the first is downloaded from, the others are mirrors.
+	 * @param sources ignored if empty
+	 */
+	public void setSources(List<URI> sources) {
+		if (sources.isEmpty()) {
+			return;
+		}
+		source = sources.get(0);
+		mirrors = new ArrayList<>(sources.subList(1, sources.size()));
+	}
+
+	/**
+	 * @return the source followed by the mirrors that have not been tried yet
+	 */
+	public List<URI> getSources() {
+		List<URI> sources = new ArrayList<>();
+		sources.add(source);
+		sources.addAll(mirrors);
+		return sources;
+	}
+
+	/**
+	 * Makes one of the mirrors the source, keeping the others, and the old source, as mirrors in their order.
+	 * @param newSource ignored if it is not the source or one of the mirrors
+	 */
+	public void moveToSource(URI newSource) {
+		List<URI> sources = getSources();
+		if (sources.remove(newSource)) {
+			sources.add(0, newSource);
+			setSources(sources);
+		}
+	}
+
+	/**
+	 * @return the mirrors that have not been tried yet
+	 */
+	public List<URI> getMirrors() {
+		return mirrors;
+	}
+
+	/**
+	 * Makes the next mirror the source.
+	 * @return false if there are no mirrors left
+	 */
+	public boolean failOver() {
+		if (mirrors.isEmpty()) {
+			return false;
+		}
+		source = mirrors.remove(0);
+		return true;
+	}
+
+	public URI getDestination() {
+		return destination;
+	}
+
+	public String getETag() {
+		return eTag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Makes the download conditional on the file having changed since
+	 * the copy with these validators was downloaded.
+	 * @param eTag may be null
+	 * @param lastModified may be null
+	 */
+	public void setValidators(String eTag, String lastModified) {
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Takes the validators of the downloaded file from the server's response.
+	 * Keeps the current ones if the server sent none, as happens with some 304 responses.
+	 * @param connection
+	 */
+	public void setValidators(URLConnection connection) {
+		String responseETag = connection.getHeaderField("ETag");
+		String responseLastModified = connection.getHeaderField("Last-Modified");
+		if (responseETag != null || responseLastModified != null) {
+			setValidators(responseETag, responseLastModified);
+		}
+	}
+
+	/**
+	 * @return the expected size of the file in bytes, or -1 if unknown
+	 */
+	public long getExpectedSize() {
+		return expectedSize;
+	}
+
+	public void setExpectedSize(long size) {
+		this.expectedSize = size;
+	}
+
+	/**
+	 * @return the expected size of the file in bytes if it is set, otherwise the size the server reported, or -1
+	 */
+	public long getKnownSize() {
+		return expectedSize >= 0 ? expectedSize : sizeHint;
+	}
+
+	/**
+	 * Sets the size the server reported for the file, which helps choose how to download it
+	 * but is not checked against the downloaded file.
+	 * @param size -1 if unknown
+	 */
+	public void setSizeHint(long size) {
+		this.sizeHint = size;
+	}
+
+	/**
+	 * @return the expected digest of the file, or null if it is not checked
+	 */
+	public Digest getExpectedDigest() {
+		return expectedDigest;
+	}
+
+	public void setExpectedDigest(Digest digest) {
+		this.expectedDigest = digest;
+	}
+
+	/**
+	 * @return the limit in bytes per second for this download alone, or 0 if there is none
+	 */
+	public long getRateLimit() {
+		return rateLimit;
+	}
+
+	/**
+	 * Limits the rate of this download, in addition to any limit shared by all downloads.
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	public void setRateLimit(long bytesPerSecond) {
+		this.rateLimit = Math.max(0, bytesPerSecond);
+	}
+
+	public boolean isConditional() {
+		return eTag != null || lastModified != null;
+	}
+
+	public boolean isNotModified() {
+		return notModified;
+	}
+
+	public void setNotModified(boolean notModified) {
+		this.notModified = notModified;
+	}
+
+	public boolean getShowErrors() {
+		return showErrors;
+	}
+
+	/**
+	 * @param showErrors false to not tell the user if the download fails, such as when it will be tried again
+	 */
+	public void setShowErrors(boolean showErrors) {
+		this.showErrors = showErrors;
+	}
+
+	/**
+	 * @return the error the download failed with, or null if it did not fail
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	public void setFailure(IOException failure) {
+		this.failure = failure;
+	}
+}
@@ -1,119 +1,703 @@
 package htlauncher.updater;
 
+import htlauncher.utilities.Digest;
 import htlauncher.utilities.Utilities;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.util.HashMap;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 /**
  * A utility class for downloading a file from a given URL.
  * Backs up files it overwrites and provides functions for rolling
  * restoring them if the download is unsuccessful.
+ * Several downloads may run concurrently on the same instance.
  */
 public class FileDownloader {
 	public static final int BUFFER_SIZE = 2048;
 	public static final int CONNECTION_TIMEOUT = 15000;
 	public static final int READ_CONNECTION_TIMEOUT = 30000;
 
-	private HashMap<String, String> backups;
+	// Location of incomplete downloads that can be resumed on a later run.
+	public static final String PARTIAL_FOLDER = "partial/";
+	private static final String PARTIAL_SUFFIX = ".part";
+	private static final String PATCHED_SUFFIX = ".patched";
+	private static final String INSTALLED_SUFFIX = ".installed";
+	private static final String CHUNKED_SUFFIX = ".chunked";
+
+	// Number of bytes after which the progress of a resumable download is recorded
+	static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	// Default number of connections a large file is downloaded over
+	public static final int DEFAULT_SEGMENT_COUNT = 4;
+
+	// Default size below which a byte range is not given a connection of its own
+	public static final long DEFAULT_MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	// Default limit in bytes per second shared by all downloads; 0 for no limit
+	public static final long DEFAULT_RATE_LIMIT = 0;
+
+	private Map<String, String> backups;
+
+	// Files created by downloads that did not replace an existing file
+	private Set<String> createdFiles;
+
+	private int segmentCount = DEFAULT_SEGMENT_COUNT;
+	private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+	private boolean useNioTransfer = true;
+
+	// Shared by all downloads of this downloader
+	private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(DEFAULT_RATE_LIMIT);
+
+	// Told how each download from a mirror went; may be null
+	private MirrorSelector mirrorSelector;
 
 	public FileDownloader() {
-		backups = new HashMap<String, String>();
+		backups = new ConcurrentHashMap<String, String>();
+		createdFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	}
 
-	public void rollBack() {
+	/**
+	 * Restores every file overwritten since the last call to removeBackups
+	 * and deletes the files that did not exist before.
+	 */
+	public synchronized void rollBack() {
+		for (String createdPath : createdFiles) {
+			File createdFile = new File(createdPath);
+			if (createdFile.exists()) {
+				createdFile.delete();
+			}
+		}
 		for (Entry<String, String> entry : backups.entrySet()) {
 			String backupPath = entry.getValue();
 			String originalPath = entry.getKey();
 			moveFile(backupPath, originalPath);
 		}
+		backups.clear();
+		createdFiles.clear();
+	}
+
+	/**
+	 * Keeps a downloaded file through the next rollBack, along with the removal
+	 * of the file it replaced.
+	 * @param path destination of the download
+	 */
+	public synchronized void keepDownload(String path) {
+		String filePath = new File(path).getPath();
+		createdFiles.remove(filePath);
+		String backupPath = backups.remove(filePath);
+		if (backupPath != null) {
+			new File(backupPath).delete();
+		}
 	}
 
-	public void removeBackups() {
+	public synchronized void removeBackups() {
 		for (String backupPath : backups.values()) {
 			File backupFile = new File(backupPath);
 			if (backupFile.exists()) {
 				backupFile.delete();
 			}
 		}
-		backups = new HashMap<String, String>();
+		backups.clear();
+		createdFiles.clear();
 	}
 
 	public void downloadFile(URI source, URI destination, DownloadProgress progress) {
-		BufferedInputStream buffInput = null;
-		BufferedOutputStream buffOut = null;
+		downloadFile(new DownloadRequest(source, destination), progress);
+	}
+
+	/**
+	 * Downloads the requested file.
+	 * A conditional request whose file did not change leaves the destination as it is,
+	 * and is marked as not modified.
+	 * The download fails if the file does not have the request's expected size or digest.
+	 * If the source fails and the request has mirrors, the download moves on to the next mirror,
+	 * continuing from the bytes already downloaded if the file's digest is known.
+	 * A download stopped earlier on one of the mirrors is continued from that mirror in the same case.
+	 * @param request
+	 * @param progress
+	 */
+	public void downloadFile(DownloadRequest request, DownloadProgress progress) {
+		File destFile = new File(request.getDestination().toString());
+		PartialDownload partial = PartialDownload.load(getPartialFile(destFile), request);
+		BandwidthLimiter[] limiters = getLimiters(request);
 		try {
-			buffInput = setupStreamFromSource(source, progress);
-			buffOut = setupStreamToDestination(destination, progress);
-	
-			download(buffInput, buffOut, progress);
+			createPartialDirectory();
+			while (true) {
+				long start = System.nanoTime();
+				long startBytes = partial.getOffset();
+				try {
+					downloadFromSource(request, partial, destFile, progress, limiters);
+					recordTransfer(request.getSource(), progress.getBytesDownloaded() - startBytes,
+							System.nanoTime() - start);
+					break;
+				} catch (FileSystemException e) {
+					// A local problem, which no other mirror can fix
+					throw e;
+				} catch (IOException e) {
+					if (mirrorSelector != null) {
+						mirrorSelector.recordFailure(request.getSource());
+					}
+					if (!request.failOver()) {
+						throw e;
+					}
+					e.printStackTrace();
+					partial = partial.moveToSource(request.getSource(), request.getExpectedDigest() != null);
+				}
+			}
 			progress.setDownloadCompleted(true);
-		} catch (UnknownHostException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
+			request.setFailure(e);
 			progress.setDownloadSuccess(false);
+			if (request.getShowErrors()) {
+				showFailure(e);
+			}
+		} finally {
+			if (!progress.getDownloadCompleted()) {
+				partial.suspend();
+			}
+		}
+	}
+
+	private static void showFailure(IOException e) {
+		if (e instanceof UnknownHostException) {
 			Utilities.showError("Connection failed", 
 					"Cannot connect to download server."
 					+ " Application Launcher files might be corrupted!");
-		} catch (SocketTimeoutException e) {
-			e.printStackTrace();
-			progress.setDownloadSuccess(false);
+		} else if (e instanceof SocketTimeoutException) {
 			Utilities.showMessage("Application Update Failed", 
 					"Connection to server timeout while updates were downloaded.");
-		} catch (FileSystemException e) {
-			e.printStackTrace();
-			progress.setDownloadSuccess(false);
+		} else if (e instanceof FileSystemException) {
 			Utilities.showWarning("Download Failed", e.getMessage()
 					+ "Application updates download failed"
 					+ "Please check the application directory's permissions");
-		} catch (IOException e) {
-			e.printStackTrace();
-			progress.setDownloadSuccess(false);
+		} else {
 			Utilities.showWarning("Download failed", e.getMessage()
 					+ "Application updates download failed");
+		}
+	}
+
+	/**
+	 * Downloads the requested file from its current source and moves it to its destination.
+	 */
+	private void downloadFromSource(DownloadRequest request, PartialDownload partial, File destFile,
+			DownloadProgress progress, BandwidthLimiter[] limiters) throws IOException {
+		MessageDigest digest = createMessageDigest(request);
+		boolean segmented = downloadInSegments(request, partial, progress, limiters);
+		if (!segmented) {
+			downloadInSingleStream(request, partial, progress, digest, limiters);
+		}
+		if (request.isNotModified()) {
+			partial.discard();
+			return;
+		}
+		try {
+			// Segments arrive out of order, so they cannot be digested as they stream in
+			verifyDownload(request, partial.getPartFile(), segmented ? null : digest);
+		} catch (IOException e) {
+			partial.discard();
+			throw e;
+		}
+		moveToDestination(partial.getPartFile(), destFile);
+		partial.complete();
+	}
+
+	private void recordTransfer(URI source, long bytes, long nanos) {
+		if (mirrorSelector != null) {
+			mirrorSelector.recordTransfer(source, bytes, nanos);
+		}
+	}
+
+	/**
+	 * Builds the requested file by applying a patch to an older version of it,
+	 * in place of downloading it from the request's source.
+	 * The destination is backed up as it would be for a download.
+	 * @param oldFile the file the patch was made against
+	 * @param patchFile
+	 * @param request destination and expected size and digest of the patched file
+	 * @return true if the patched file was built and matches the request
+	 */
+	public boolean patchFile(File oldFile, File patchFile, DownloadRequest request) {
+		File destFile = new File(request.getDestination().toString());
+		File patchedFile = new File(PARTIAL_FOLDER, getPartialFile(destFile).getName() + PATCHED_SUFFIX);
+		try {
+			createPartialDirectory();
+			MessageDigest digest = createMessageDigest(request);
+			try (InputStream patch = new BufferedInputStream(new FileInputStream(patchFile));
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(patchedFile))) {
+				DeltaPatcher.applyPatch(oldFile, patch, out, digest);
+			}
+			verifyDownload(request, patchedFile, digest);
+			moveToDestination(patchedFile, destFile);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			patchedFile.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Builds the requested file from its chunk index, downloading only the chunks
+	 * that are not available locally.
+	 * The destination is backed up as it would be for a download.
+	 * @param request source, destination and expected size and digest of the file
+	 * @param index chunk index of the file on the server
+	 * @param localChunks
+	 * @param progress
+	 * @return true if the file was built and matches the request
+	 */
+	public boolean downloadChunked(DownloadRequest request, ChunkIndex index, ChunkStore localChunks,
+			DownloadProgress progress) {
+		File destFile = new File(request.getDestination().toString());
+		File chunkedFile = new File(PARTIAL_FOLDER, getPartialFile(destFile).getName() + CHUNKED_SUFFIX);
+		try {
+			createPartialDirectory();
+			if (request.getExpectedSize() >= 0 && index.getFileSize() != request.getExpectedSize()) {
+				throw new IOException("The chunk index of " + request.getSource() + " does not match its size");
+			}
+			ChunkedDownload download = new ChunkedDownload(request.getSource(), index, localChunks,
+					chunkedFile, progress, getLimiters(request));
+			if (!download.run()) {
+				chunkedFile.delete();
+				return false;
+			}
+			verifyDownload(request, chunkedFile, null);
+			moveToDestination(chunkedFile, destFile);
+			progress.setDownloadCompleted(true);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			chunkedFile.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Installs a local copy of the requested file, such as an entry of the artifact store,
+	 * in place of downloading it. The file is hard-linked where the file system allows it.
+	 * The destination is backed up as it would be for a download.
+	 * The copy is checked like a download, and a source that does not match the
+	 * request's digest is deleted, as it can no longer be trusted.
+	 * @param source a file that is never modified in place
+	 * @param request destination and expected size and digest of the file
+	 * @return true if the file was installed
+	 */
+	public boolean installFile(File source, DownloadRequest request) {
+		File destFile = new File(request.getDestination().toString());
+		File installedFile = new File(PARTIAL_FOLDER, getPartialFile(destFile).getName() + INSTALLED_SUFFIX);
+		try {
+			createPartialDirectory();
+			if (request.getExpectedSize() >= 0 && source.length() != request.getExpectedSize()) {
+				return false;
+			}
+			installedFile.delete();
+			ArtifactStore.copyOrLink(source, installedFile);
+			try {
+				verifyDownload(request, installedFile, null);
+			} catch (IOException e) {
+				source.delete();
+				throw e;
+			}
+			moveToDestination(installedFile, destFile);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			installedFile.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Chooses how single-stream downloads copy bytes to disk.
+	 * @param useNio true to copy through NIO channels and pooled direct buffers,
+	 * false to use buffered streams
+	 */
+	public void setUseNioTransfer(boolean useNio) {
+		useNioTransfer = useNio;
+	}
+
+	/**
+	 * Sets the number of connections a large file is downloaded over.
+	 * @param segments 1 to always download over a single connection
+	 */
+	public void setSegmentCount(int segments) {
+		segmentCount = Math.max(1, segments);
+	}
+
+	/**
+	 * Limits the rate of all downloads together, including those that are running.
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	public void setRateLimit(long bytesPerSecond) {
+		bandwidthLimiter.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * @return the limit in bytes per second shared by all downloads, or 0 if there is none
+	 */
+	public long getRateLimit() {
+		return bandwidthLimiter.getRate();
+	}
+
+	/**
+	 * Reports the throughput and failures of downloads to the selector, so it can rank mirrors.
+	 * @param selector null to not report them
+	 */
+	public void setMirrorSelector(MirrorSelector selector) {
+		mirrorSelector = selector;
+	}
+
+	/**
+	 * @return the limiters a download is subject to: the shared one and, if the request has one, its own
+	 */
+	private BandwidthLimiter[] getLimiters(DownloadRequest request) {
+		if (request.getRateLimit() > 0) {
+			return new BandwidthLimiter[] {bandwidthLimiter, new BandwidthLimiter(request.getRateLimit())};
+		}
+		return new BandwidthLimiter[] {bandwidthLimiter};
+	}
+
+	/**
+	 * Sets the smallest byte range worth fetching over a connection of its own.
+	 * @param bytes
+	 */
+	public void setMinSegmentSize(long bytes) {
+		minSegmentSize = Math.max(1, bytes);
+	}
+
+	/**
+	 * Downloads the source over several connections if segmented downloads are
+	 * enabled and the server supports them.
+	 * A single-stream download that was interrupted is resumed as it was started.
+	 * Conditional requests, and files known to be too small to split, are always made over
+	 * a single connection, without first asking the server for the file's size.
+	 * @return false if nothing was downloaded
+	 */
+	private boolean downloadInSegments(DownloadRequest request, PartialDownload partial,
+			DownloadProgress progress, BandwidthLimiter[] limiters) throws IOException {
+		URI source = request.getSource();
+		long knownSize = request.getKnownSize();
+		if (segmentCount <= 1 || !isHttp(source) || request.isConditional()
+				|| (partial.canResume() && !partial.isSegmented())
+				|| (knownSize >= 0 && knownSize < 2 * minSegmentSize && !partial.isSegmented())) {
+			return false;
+		}
+		return new SegmentedDownload(source, partial, progress, segmentCount, minSegmentSize, limiters).run();
+	}
+
+	private void downloadInSingleStream(DownloadRequest request, PartialDownload partial,
+			DownloadProgress progress, MessageDigest digest, BandwidthLimiter[] limiters) throws IOException {
+		URLConnection connection = setupConnection(request, partial);
+		if (request.isNotModified()) {
+			HttpTransport.getShared().release(connection);
+			return;
+		}
+		setTotalDownloadBytes(progress, connection, partial);
+		checkTotalDownloadBytes(request, progress);
+		if (digest != null && partial.getOffset() > 0) {
+			updateDigest(digest, partial.getPartFile(), partial.getOffset());
+		}
+
+		if (useNioTransfer) {
+			downloadWithChannels(request.getSource(), connection, partial, progress, digest, limiters);
+		} else {
+			downloadWithStreams(connection, partial, progress, digest, limiters);
+		}
+		long totalBytes = progress.getTotalDownloadBytes();
+		if (totalBytes >= 0 && partial.getOffset() < totalBytes) {
+			// Keeps the bytes received so far, unlike a failed verification
+			throw new IOException("Connection to " + request.getSource() + " closed after "
+					+ partial.getOffset() + " of " + totalBytes + " bytes. ");
+		}
+	}
+
+	private void downloadWithStreams(URLConnection connection, PartialDownload partial,
+			DownloadProgress progress, MessageDigest digest, BandwidthLimiter[] limiters) throws IOException {
+		BufferedInputStream buffInput = null;
+		BufferedOutputStream buffOut = null;
+		try {
+			buffInput = new BufferedInputStream(Channels.newInputStream(BandwidthLimiter.throttle(
+					Channels.newChannel(connection.getInputStream()), limiters)));
+			buffOut = setupStreamToPartialFile(partial);
+			download(buffInput, buffOut, progress, partial, digest);
 		} finally {
 			closeIOStreams(buffInput, buffOut);
 		}
 	}
 
-	private BufferedInputStream setupStreamFromSource(URI source,
-			DownloadProgress progress) throws MalformedURLException,
-			IOException {
-		BufferedInputStream buffInput = null;
-		URLConnection connection = source.toURL().openConnection();
-		connection.setConnectTimeout(CONNECTION_TIMEOUT);
-		connection.setReadTimeout(READ_CONNECTION_TIMEOUT);
-		progress.setTotalDownloadBytes(connection.getContentLengthLong());
-		buffInput = new BufferedInputStream(connection.getInputStream());
+	private void downloadWithChannels(URI source, URLConnection connection, PartialDownload partial,
+			DownloadProgress progress, MessageDigest digest, BandwidthLimiter[] limiters) throws IOException {
+		CheckpointListener listener = new CheckpointListener(partial, progress);
+		try (ReadableByteChannel input = openSourceChannel(source, connection, limiters);
+				FileChannel output = FileChannel.open(partial.getPartFile().toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			output.truncate(partial.getOffset());
+			ChannelTransfer.transfer(input, output, partial.getOffset(), Long.MAX_VALUE, digest, listener);
+		} finally {
+			// Everything reported so far is kept if the transfer breaks off
+			partial.setOffset(listener.getBytesDownloaded());
+		}
+	}
 
-		return buffInput;
+	/**
+	 * Local files are read through a FileChannel so that they can be copied without
+	 * passing through the Java heap. They are not subject to the bandwidth limits.
+	 */
+	private static ReadableByteChannel openSourceChannel(URI source, URLConnection connection,
+			BandwidthLimiter[] limiters) throws IOException {
+		if ("file".equalsIgnoreCase(source.getScheme())) {
+			connection.getInputStream().close();
+			return FileChannel.open(Paths.get(source), StandardOpenOption.READ);
+		}
+		return BandwidthLimiter.throttle(Channels.newChannel(connection.getInputStream()), limiters);
 	}
 
-	private BufferedOutputStream setupStreamToDestination(URI destination,
-			DownloadProgress progress) throws IOException {
-		File destFile = new File(destination.toString());
-		if (destFile.exists()) {
-			createBackUp(destFile);
+	/**
+	 * Reports the progress of a single-stream transfer and records it in the partial download.
+	 */
+	private static class CheckpointListener implements ChannelTransfer.Listener {
+		private final PartialDownload partial;
+		private final DownloadProgress progress;
+		private long bytesDownloaded;
+		private long lastCheckpoint;
+
+		CheckpointListener(PartialDownload partial, DownloadProgress progress) {
+			this.partial = partial;
+			this.progress = progress;
+			bytesDownloaded = partial.getOffset();
+			lastCheckpoint = bytesDownloaded;
+			progress.setBytesDownloaded(bytesDownloaded);
+		}
+
+		long getBytesDownloaded() {
+			return bytesDownloaded;
+		}
+
+		@Override
+		public void transferred(long bytes) throws IOException {
+			bytesDownloaded += bytes;
+			progress.setBytesDownloaded(bytesDownloaded);
+			if (bytesDownloaded - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+				partial.setOffset(bytesDownloaded);
+				partial.save();
+				lastCheckpoint = bytesDownloaded;
+			}
+		}
+	}
+
+	private static MessageDigest createMessageDigest(DownloadRequest request) throws IOException {
+		if (request.getExpectedDigest() == null) {
+			return null;
+		}
+		try {
+			return request.getExpectedDigest().createMessageDigest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unsupported digest algorithm " + request.getExpectedDigest().getAlgorithm(), e);
+		}
+	}
+
+	/**
+	 * Fails early if the server is about to send a file of the wrong size.
+	 */
+	private static void checkTotalDownloadBytes(DownloadRequest request, DownloadProgress progress)
+			throws IOException {
+		long expectedSize = request.getExpectedSize();
+		long totalBytes = progress.getTotalDownloadBytes();
+		if (expectedSize >= 0 && totalBytes >= 0 && totalBytes != expectedSize) {
+			throw new IOException("Server sent " + totalBytes + " bytes for " + request.getSource()
+					+ " instead of the expected " + expectedSize + ". ");
+		}
+	}
+
+	/**
+	 * Checks a completed file against the request's expected size and digest.
+	 * @param digest digest of the file's bytes, or null to compute it from the file
+	 * @throws IOException if the file does not match
+	 */
+	static void verifyDownload(DownloadRequest request, File file,
+			MessageDigest digest) throws IOException {
+		long expectedSize = request.getExpectedSize();
+		if (expectedSize >= 0 && file.length() != expectedSize) {
+			throw new IOException("Got " + file.length() + " bytes for " + request.getSource()
+					+ " instead of the expected " + expectedSize + ". ");
+		}
+
+		Digest expectedDigest = request.getExpectedDigest();
+		if (expectedDigest == null) {
+			return;
+		}
+		if (digest == null) {
+			digest = createMessageDigest(request);
+			updateDigest(digest, file, file.length());
+		}
+		if (!expectedDigest.matches(digest.digest())) {
+			throw new IOException("The file for " + request.getSource()
+					+ " does not match its " + expectedDigest.getAlgorithm() + " digest. ");
+		}
+	}
+
+	/**
+	 * Feeds the first length bytes of the file to the digest.
+	 */
+	private static void updateDigest(MessageDigest digest, File file, long length) throws IOException {
+		byte[] buff = new byte[FileDownloader.BUFFER_SIZE];
+		try (InputStream input = new FileInputStream(file)) {
+			long remaining = length;
+			int bytesRead;
+			while (remaining > 0
+					&& (bytesRead = input.read(buff, 0, (int) Math.min(buff.length, remaining))) > 0) {
+				digest.update(buff, 0, bytesRead);
+				remaining -= bytesRead;
+			}
+		}
+	}
+
+	private static void createPartialDirectory() {
+		File partialDir = new File(PARTIAL_FOLDER);
+		if (!partialDir.exists()) {
+			partialDir.mkdirs();
+		}
+	}
+
+	private static boolean isHttp(URI source) {
+		String scheme = source.getScheme();
+		return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+	}
+
+	/**
+	 * Opens a connection to the source, asking only for the missing bytes
+	 * if a partial download can be resumed.
+	 * Resets the partial download if the server sends the whole file instead.
+	 * Marks the request as not modified if the server answers a conditional request with 304.
+	 */
+	private URLConnection setupConnection(DownloadRequest request, PartialDownload partial)
+			throws MalformedURLException, IOException {
+		URLConnection connection = openConnection(request.getSource());
+		if (!(connection instanceof HttpURLConnection)) {
+			partial.discard();
+			return connection;
+		}
+
+		HttpURLConnection httpConnection = (HttpURLConnection) connection;
+		if (request.getETag() != null) {
+			httpConnection.setRequestProperty("If-None-Match", request.getETag());
+		}
+		if (request.getLastModified() != null) {
+			httpConnection.setRequestProperty("If-Modified-Since", request.getLastModified());
+		}
+		if (partial.canResume() && !partial.isSegmented()) {
+			httpConnection.setRequestProperty("Range", "bytes=" + partial.getOffset() + "-");
+			// Bytes from another mirror have no validator; the digest check guards them instead
+			if (partial.getValidator() != null) {
+				httpConnection.setRequestProperty("If-Range", partial.getValidator());
+			}
+
+			if (httpConnection.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+				// The stored offset does not fit the file on the server; start over
+				HttpTransport.getShared().release(httpConnection);
+				partial.discard();
+				return setupConnection(request, partial);
+			}
+			if (!isRangeAccepted(httpConnection, partial.getOffset())) {
+				partial.discard();
+				if (httpConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+					// Anything but the whole file, such as a range from another offset, cannot be
+					// written from the start; ask again for the whole file
+					HttpTransport.getShared().release(httpConnection);
+					return setupConnection(request, partial);
+				}
+			}
+		} else {
+			partial.discard();
+		}
+		if (httpConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			request.setNotModified(true);
+		}
+		partial.setValidators(httpConnection);
+		request.setValidators(httpConnection);
+		return httpConnection;
+	}
+
+	static URLConnection openConnection(URI source) throws MalformedURLException, IOException {
+		return HttpTransport.getShared().open(source);
+	}
+
+	/**
+	 * @return true if the server answered with the part of the file starting at offset
+	 */
+	static boolean isRangeAccepted(HttpURLConnection connection, long offset) throws IOException {
+		if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+			return false;
+		}
+		// Content-Range: bytes <first>-<last>/<length>
+		String contentRange = connection.getHeaderField("Content-Range");
+		return contentRange != null && contentRange.startsWith("bytes " + offset + "-");
+	}
+
+	/**
+	 * Opens the partial file for writing after its valid bytes.
+	 */
+	private BufferedOutputStream setupStreamToPartialFile(PartialDownload partial) throws IOException {
+		File partFile = partial.getPartFile();
+		try (RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+			file.setLength(partial.getOffset());
 		}
-		destFile.createNewFile();
 		BufferedOutputStream buffOut = new BufferedOutputStream(
-				new FileOutputStream(destFile));
+				new FileOutputStream(partFile, true));
 
 		return buffOut;
 	}
 
+	/**
+	 * Replaces the destination with a completed file, backing up the destination first.
+	 */
+	private void moveToDestination(File completedFile, File destFile) throws IOException {
+		if (destFile.exists()) {
+			createBackUp(destFile);
+		} else {
+			createdFiles.add(destFile.getPath());
+		}
+		Files.move(completedFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return the file in which an incomplete download of destFile is kept
+	 */
+	private File getPartialFile(File destFile) {
+		String name = destFile.getPath().replace(File.separatorChar, '_').replace('/', '_');
+		return new File(PARTIAL_FOLDER, name + PARTIAL_SUFFIX);
+	}
+
 	private void moveFile(String source, String dest) {
 		try {
 			Files.move(Paths.get(source), Paths.get(dest),
@@ -136,17 +720,45 @@ public class FileDownloader {
 	}
 
 	private void download(BufferedInputStream buffInput,
-			BufferedOutputStream buffOut, DownloadProgress progress)
-			throws IOException {
+			BufferedOutputStream buffOut, DownloadProgress progress,
+			PartialDownload partial, MessageDigest digest) throws IOException {
 		byte[] buff = new byte[FileDownloader.BUFFER_SIZE];
 
 		int bytesRead = 0;
-		int totalBytesRead = 0;
-		while ((bytesRead = buffInput.read(buff)) > 0) {
-			totalBytesRead += bytesRead;
+		long totalBytesRead = partial.getOffset();
+		long lastCheckpoint = totalBytesRead;
+		progress.setBytesDownloaded(totalBytesRead);
+		try {
+			while ((bytesRead = buffInput.read(buff)) > 0) {
+				buffOut.write(buff, 0, bytesRead);
+				if (digest != null) {
+					digest.update(buff, 0, bytesRead);
+				}
+				totalBytesRead += bytesRead;
+
+				progress.setBytesDownloaded(totalBytesRead);
+
+				if (totalBytesRead - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+					// Record how far we got, in case the launcher is killed mid-download
+					buffOut.flush();
+					partial.setOffset(totalBytesRead);
+					partial.save();
+					lastCheckpoint = totalBytesRead;
+				}
+			}
+		} finally {
+			// Everything written so far is kept if the transfer breaks off
+			partial.setOffset(totalBytesRead);
+		}
+	}
 
-			progress.setBytesDownloaded(totalBytesRead);
-			buffOut.write(buff, 0, bytesRead);
+	private void setTotalDownloadBytes(DownloadProgress progress,
+			URLConnection connection, PartialDownload partial) {
+		long remainingBytes = connection.getContentLengthLong();
+		if (remainingBytes < 0) {
+			progress.setTotalDownloadBytes(remainingBytes);
+		} else {
+			progress.setTotalDownloadBytes(partial.getOffset() + remainingBytes);
 		}
 	}
 
@@ -0,0 +1,272 @@
+package htlauncher.updater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens the connections used by the updater so that they are shared between requests.
+ *
+ * Connections to the same server are kept alive and reused by the JDK's connection
+ * cache as long as every response body is read to its end and closed, rather than
+ * the connection being disconnected. release does that for responses whose body
+ * is not otherwise read, such as HEAD requests, 304s and error responses.
+ * HTTPS connections all share one SSLSocketFactory, which the cache requires for
+ * reuse and which counts the TLS handshakes that could not be avoided.
+ */
+public class HttpTransport {
+	// Number of idle connections kept alive per server
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+
+	// Largest response body read to the end to keep its connection; bigger ones are dropped
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	private static final String MAX_CONNECTIONS_PROPERTY = "http.maxConnections";
+
+	private static final HttpTransport shared;
+
+	static {
+		// The connection cache reads this once, so it is set before the first connection
+		if (System.getProperty(MAX_CONNECTIONS_PROPERTY) == null) {
+			System.setProperty(MAX_CONNECTIONS_PROPERTY, Integer.toString(DEFAULT_MAX_IDLE_CONNECTIONS));
+		}
+		shared = new HttpTransport();
+	}
+
+	private final CountingSSLSocketFactory sslSocketFactory =
+			new CountingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * @return the transport shared by all downloads
+	 */
+	public static HttpTransport getShared() {
+		return shared;
+	}
+
+	/**
+	 * Opens a connection to the source with the updater's timeouts.
+	 * @param source
+	 */
+	public URLConnection open(URI source) throws IOException {
+		URLConnection connection = source.toURL().openConnection();
+		connection.setConnectTimeout(FileDownloader.CONNECTION_TIMEOUT);
+		connection.setReadTimeout(FileDownloader.READ_CONNECTION_TIMEOUT);
+		if (connection instanceof HttpsURLConnection) {
+			((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+		}
+		if (connection instanceof HttpURLConnection) {
+			requests.incrementAndGet();
+		}
+		return connection;
+	}
+
+	/**
+	 * Finishes with a connection whose response body will not be read,
+	 * returning it to the connection cache if its body is short enough to skip.
+	 * @param connection
+	 */
+	public void release(URLConnection connection) {
+		if (!(connection instanceof HttpURLConnection)) {
+			return;
+		}
+		HttpURLConnection httpConnection = (HttpURLConnection) connection;
+		try {
+			InputStream body = httpConnection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+					? httpConnection.getErrorStream()
+					: httpConnection.getInputStream();
+			if (body == null || drain(body)) {
+				if (body != null) {
+					body.close();
+				}
+				released.incrementAndGet();
+				return;
+			}
+		} catch (IOException e) {
+			// The connection cannot be reused
+		}
+		httpConnection.disconnect();
+		discarded.incrementAndGet();
+	}
+
+	/**
+	 * Checks that the server is reachable with a HEAD request for the given resource.
+	 * The connection is kept for the requests that follow.
+	 * @param resource
+	 * @return true if the server answered, whatever the status
+	 */
+	public boolean probe(URI resource) {
+		try {
+			URLConnection connection = open(resource);
+			if (!(connection instanceof HttpURLConnection)) {
+				connection.connect();
+				return true;
+			}
+			HttpURLConnection httpConnection = (HttpURLConnection) connection;
+			httpConnection.setRequestMethod("HEAD");
+			httpConnection.getResponseCode();
+			release(httpConnection);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Asks the server for the size of a resource with a HEAD request.
+	 * @param resource
+	 * @return the size in bytes, or -1 if it cannot be found out
+	 */
+	public long getContentLength(URI resource) {
+		try {
+			URLConnection connection = open(resource);
+			if (!(connection instanceof HttpURLConnection)) {
+				long length = connection.getContentLengthLong();
+				connection.getInputStream().close();
+				return length;
+			}
+			HttpURLConnection httpConnection = (HttpURLConnection) connection;
+			httpConnection.setRequestMethod("HEAD");
+			long length = httpConnection.getResponseCode() == HttpURLConnection.HTTP_OK
+					? httpConnection.getContentLengthLong()
+					: -1;
+			release(httpConnection);
+			return length;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return true if the body ended within MAX_DRAIN_BYTES
+	 */
+	private static boolean drain(InputStream body) throws IOException {
+		byte[] buff = new byte[FileDownloader.BUFFER_SIZE];
+		long total = 0;
+		int read;
+		while ((read = body.read(buff)) >= 0) {
+			total += read;
+			if (total > MAX_DRAIN_BYTES) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of HTTP requests made
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of connections returned to the connection cache by release
+	 */
+	public long getReleasedCount() {
+		return released.get();
+	}
+
+	/**
+	 * @return the number of connections closed by release because they could not be reused
+	 */
+	public long getDiscardedCount() {
+		return discarded.get();
+	}
+
+	/**
+	 * @return the number of TLS connections opened. Requests over a reused connection do not open one.
+	 */
+	public long getTlsConnectionCount() {
+		return sslSocketFactory.connections.get();
+	}
+
+	/**
+	 * @return the number of TLS handshakes completed
+	 */
+	public long getTlsHandshakeCount() {
+		return sslSocketFactory.handshakes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "requests=" + getRequestCount() + " released=" + getReleasedCount()
+				+ " discarded=" + getDiscardedCount() + " tlsConnections=" + getTlsConnectionCount()
+				+ " tlsHandshakes=" + getTlsHandshakeCount();
+	}
+
+	/**
+	 * Delegates to the default factory, counting the sockets it creates and their handshakes.
+	 */
+	private static class CountingSSLSocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory factory;
+		private final AtomicLong connections = new AtomicLong();
+		private final AtomicLong handshakes = new AtomicLong();
+
+		CountingSSLSocketFactory(SSLSocketFactory factory) {
+			this.factory = factory;
+		}
+
+		private Socket count(Socket socket) {
+			if (socket instanceof SSLSocket) {
+				connections.incrementAndGet();
+				((SSLSocket) socket).addHandshakeCompletedListener(event -> handshakes.incrementAndGet());
+			}
+			return socket;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return factory.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return factory.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return count(factory.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+			return count(factory.createSocket(socket, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return count(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+				throws IOException {
+			return count(factory.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return count(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+				throws IOException {
+			return count(factory.createSocket(address, port, localAddress, localPort));
+		}
+	}
+}
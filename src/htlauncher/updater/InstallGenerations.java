@@ -0,0 +1,321 @@
+package htlauncher.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps each installed version of the application in its own generation directory,
+ * app-1/, app-2/ and so on, and records which one is in use in a pointer file.
+ *
+ * A new generation is built next to the current one, so the files of the running
+ * application are never touched. Activating it, or going back to an earlier one,
+ * only replaces the pointer file, which is done with an atomic rename.
+ * The directory used by earlier versions of the launcher, app/, is treated as generation 0.
+ */
+public class InstallGenerations {
+	public static final String GENERATION_PREFIX = "app-";
+	public static final String LEGACY_GENERATION = "app";
+
+	// Pointer to the generation in use
+	public static final String CURRENT_POINTER = "app.current";
+
+	// Pointer to a generation that has been built but will only be used from the next start
+	public static final String PENDING_POINTER = "app.pending";
+
+	// Number of generations older than the current one that are kept for rolling back
+	public static final int DEFAULT_RETAINED_GENERATIONS = 2;
+
+	private static final String STAGING_SUFFIX = ".staging";
+	private static final String DELETING_SUFFIX = ".deleting";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File root;
+	private int retainedGenerations = DEFAULT_RETAINED_GENERATIONS;
+
+	public InstallGenerations(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * @return the directory of the generation in use. It does not exist if nothing has been installed.
+	 */
+	public synchronized File getCurrentDirectory() {
+		String name = readPointer(CURRENT_POINTER);
+		if (name == null) {
+			name = LEGACY_GENERATION;
+		}
+		return new File(root, name);
+	}
+
+	/**
+	 * @return the directory of the generation that will be used from the next start, or null if there is none
+	 */
+	public synchronized File getPendingDirectory() {
+		String name = readPointer(PENDING_POINTER);
+		return name == null ? null : new File(root, name);
+	}
+
+	/**
+	 * @return the directory of the newest installed generation, pending or current
+	 */
+	public synchronized File getLatestDirectory() {
+		File pending = getPendingDirectory();
+		return pending != null ? pending : getCurrentDirectory();
+	}
+
+	/**
+	 * Builds a new generation from the latest one with the files in the update folder
+	 * laid over it, and makes it the pending generation.
+	 * Unchanged files are hard-linked where the file system allows it.
+	 * Files are moved out of the update folder; folders in it replace the whole folder.
+	 * @param updateDir
+	 * @return the directory of the new generation
+	 */
+	public synchronized File stage(File updateDir) throws IOException {
+		File base = getLatestDirectory();
+		String name = GENERATION_PREFIX + (getNewestNumber() + 1);
+		File staging = new File(root, name + STAGING_SUFFIX);
+		if (staging.exists()) {
+			delete(staging);
+		}
+		staging.mkdirs();
+
+		if (base.isDirectory()) {
+			linkTree(base, staging);
+		}
+		String[] items = updateDir.list();
+		if (items != null) {
+			for (String item : items) {
+				File source = new File(updateDir, item);
+				File dest = new File(staging, item);
+				if (dest.exists() && source.isDirectory()) {
+					delete(dest);
+				}
+				Files.move(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		// A generation directory only appears once it is complete
+		File generation = new File(root, name);
+		Files.move(staging.toPath(), generation.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		writePointer(PENDING_POINTER, name);
+		return generation;
+	}
+
+	/**
+	 * Makes the pending generation the current one.
+	 * @return false if there was no pending generation
+	 */
+	public synchronized boolean activatePending() throws IOException {
+		File pending = getPendingDirectory();
+		if (pending == null) {
+			return false;
+		}
+		if (!pending.isDirectory()) {
+			new File(root, PENDING_POINTER).delete();
+			return false;
+		}
+		Files.move(new File(root, PENDING_POINTER).toPath(), new File(root, CURRENT_POINTER).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	/**
+	 * Makes the newest generation older than the current one current again,
+	 * and drops any pending generation.
+	 * @return the directory of the generation now in use, or null if there is no older generation
+	 */
+	public synchronized File rollBack() throws IOException {
+		int current = getNumber(getCurrentDirectory().getName());
+		File previous = null;
+		for (int number : getGenerationNumbers()) {
+			if (number < current) {
+				previous = new File(root, getName(number));
+			}
+		}
+		if (previous == null) {
+			return null;
+		}
+		writePointer(CURRENT_POINTER, previous.getName());
+		new File(root, PENDING_POINTER).delete();
+		return previous;
+	}
+
+	/**
+	 * Deletes the generations that are neither current, pending nor among the
+	 * retainedGenerations newest ones older than the current one,
+	 * as well as leftovers of interrupted staging.
+	 */
+	public synchronized void collectGarbage() {
+		int current = getNumber(getCurrentDirectory().getName());
+		File pending = getPendingDirectory();
+		int pendingNumber = pending == null ? -1 : getNumber(pending.getName());
+
+		List<Integer> numbers = getGenerationNumbers();
+		Collections.reverse(numbers);
+		int retained = 0;
+		List<File> garbage = new ArrayList<>();
+		for (int number : numbers) {
+			if (number == current || number == pendingNumber) {
+				continue;
+			}
+			if (number < current && retained < retainedGenerations) {
+				retained++;
+				continue;
+			}
+			garbage.add(new File(root, getName(number)));
+		}
+
+		for (File generation : garbage) {
+			// Renamed first so that a partly deleted generation can never be rolled back to
+			File deleting = new File(root, generation.getName() + DELETING_SUFFIX);
+			if (generation.renameTo(deleting)) {
+				delete(deleting);
+			}
+		}
+		File[] leftovers = root.listFiles((dir, name) -> name.startsWith(GENERATION_PREFIX)
+				&& (name.endsWith(DELETING_SUFFIX) || name.endsWith(STAGING_SUFFIX)));
+		if (leftovers != null) {
+			for (File leftover : leftovers) {
+				delete(leftover);
+			}
+		}
+	}
+
+	/**
+	 * Runs collectGarbage on a background thread.
+	 */
+	public void collectGarbageInBackground() {
+		Thread collector = new Thread(this::collectGarbage, "generation-gc");
+		collector.setDaemon(true);
+		collector.setPriority(Thread.MIN_PRIORITY);
+		collector.start();
+	}
+
+	/**
+	 * Sets the number of generations older than the current one that are kept for rolling back.
+	 * @param generations
+	 */
+	public void setRetainedGenerations(int generations) {
+		retainedGenerations = Math.max(0, generations);
+	}
+
+	/**
+	 * @return the numbers of all complete generations, in ascending order
+	 */
+	private List<Integer> getGenerationNumbers() {
+		List<Integer> numbers = new ArrayList<>();
+		String[] names = root.list();
+		if (names != null) {
+			for (String name : names) {
+				int number = getNumber(name);
+				if (number >= 0 && new File(root, name).isDirectory()) {
+					numbers.add(number);
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	private int getNewestNumber() {
+		List<Integer> numbers = getGenerationNumbers();
+		int newest = numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1);
+		File pending = getPendingDirectory();
+		if (pending != null) {
+			newest = Math.max(newest, getNumber(pending.getName()));
+		}
+		return Math.max(newest, getNumber(getCurrentDirectory().getName()));
+	}
+
+	/**
+	 * @return the number of the generation with the given directory name, or -1 if it is not one
+	 */
+	private static int getNumber(String name) {
+		if (name.equals(LEGACY_GENERATION)) {
+			return 0;
+		}
+		if (!name.startsWith(GENERATION_PREFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(GENERATION_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String getName(int number) {
+		return number == 0 ? LEGACY_GENERATION : GENERATION_PREFIX + number;
+	}
+
+	private String readPointer(String pointer) {
+		File file = new File(root, pointer);
+		if (!file.exists()) {
+			return null;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String name = reader.readLine();
+			return name == null || getNumber(name.trim()) < 0 ? null : name.trim();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces the pointer file with an atomic rename, so it always names a complete generation.
+	 */
+	private void writePointer(String pointer, String name) throws IOException {
+		File temp = new File(root, pointer + TEMP_SUFFIX);
+		try (Writer writer = new FileWriter(temp)) {
+			writer.write(name);
+			writer.write("\n");
+		}
+		Files.move(temp.toPath(), new File(root, pointer).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Recreates the tree of source under dest with hard links, copying files that cannot be linked.
+	 */
+	private static void linkTree(File source, File dest) throws IOException {
+		String[] items = source.list();
+		if (items == null) {
+			return;
+		}
+		for (String item : items) {
+			File sourceItem = new File(source, item);
+			File destItem = new File(dest, item);
+			if (sourceItem.isDirectory()) {
+				destItem.mkdir();
+				linkTree(sourceItem, destItem);
+				continue;
+			}
+			try {
+				Files.createLink(destItem.toPath(), sourceItem.toPath());
+			} catch (IOException | UnsupportedOperationException e) {
+				Files.copy(sourceItem.toPath(), destItem.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	static void delete(File file) {
+		File[] items = file.listFiles();
+		if (items != null) {
+			for (File item : items) {
+				delete(item);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,256 @@
+package htlauncher.updater;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Orders the locations of a file from the mirror expected to serve it fastest to the slowest.
+ *
+ * Mirrors are compared by origin (scheme, host and port). Each origin is probed with a HEAD
+ * request when nothing recent is known about it, all origins at the same time, and the time
+ * it takes to answer is combined with the throughput measured over real downloads from it.
+ * Failures push a mirror down the list until it answers again.
+ */
+public class MirrorSelector {
+	// Default time in milliseconds for which a probe result is used before probing again
+	public static final long DEFAULT_PROBE_TTL = 24 * 60 * 60 * 1000;
+
+	// Maximum time in milliseconds to wait for all probes of a ranking
+	public static final long PROBE_TIMEOUT = 5000;
+
+	// Time in milliseconds after a failure before a mirror is probed again,
+	// doubling with each failure in a row up to the probe TTL
+	public static final long FAILURE_PROBE_DELAY = 60 * 1000;
+
+	// Size of the download the ranking estimates the time of
+	private static final long REFERENCE_SIZE = 1024 * 1024;
+
+	// Throughput assumed for a mirror nothing has been downloaded from yet
+	private static final long DEFAULT_THROUGHPUT = 1024 * 1024;
+
+	private static final int MAX_PROBE_THREADS = 8;
+
+	private final Map<String, MirrorStats> stats;
+	private final BiConsumer<String, MirrorStats> listener;
+	private long probeTTL = DEFAULT_PROBE_TTL;
+
+	/**
+	 * @param storedStats stats kept from earlier runs, keyed by origin
+	 * @param listener told about every change so it can be saved; may be null
+	 */
+	public MirrorSelector(Map<String, MirrorStats> storedStats, BiConsumer<String, MirrorStats> listener) {
+		this.stats = new ConcurrentHashMap<>(storedStats);
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the time for which a probe result is used before the mirror is probed again.
+	 * @param millis
+	 */
+	public void setProbeTTL(long millis) {
+		probeTTL = millis;
+	}
+
+	/**
+	 * @param origin as returned by getOrigin
+	 * @return what is known about the origin, or null if nothing is
+	 */
+	public MirrorStats getStats(String origin) {
+		return stats.get(origin);
+	}
+
+	/**
+	 * Probes the origins that have not been probed recently and orders the sources by expected speed.
+	 * Sources that are equally fast keep their order, so the first source wins when nothing is known.
+	 * @param sources locations of the same file
+	 * @return the sources, fastest first
+	 */
+	public List<URI> rank(List<URI> sources) {
+		List<URI> ranked = new ArrayList<>(sources);
+		if (ranked.size() <= 1) {
+			return ranked;
+		}
+		probeStale(ranked);
+		ranked.sort(Comparator.comparingDouble(source -> getExpectedTime(getOrigin(source))));
+		return ranked;
+	}
+
+	/**
+	 * Records the throughput of a completed download.
+	 * @param source
+	 * @param bytes bytes received from the source
+	 * @param nanos time the transfer took
+	 */
+	public void recordTransfer(URI source, long bytes, long nanos) {
+		String origin = getOrigin(source);
+		if (origin == null || nanos <= 0) {
+			return;
+		}
+		MirrorStats current = stats.getOrDefault(origin, new MirrorStats(-1, -1, 0, 0));
+		if (bytes < REFERENCE_SIZE / 16) {
+			// Too small to say anything about throughput, but the mirror did answer
+			if (current.getFailures() > 0) {
+				update(origin, new MirrorStats(current.getLatency(), current.getThroughput(), 0,
+						current.getCheckTime()));
+			}
+			return;
+		}
+		update(origin, current.withTransfer(bytes * 1000000000L / nanos));
+	}
+
+	/**
+	 * Records that a download from the source failed or stalled.
+	 * @param source
+	 */
+	public void recordFailure(URI source) {
+		String origin = getOrigin(source);
+		if (origin == null) {
+			return;
+		}
+		MirrorStats current = stats.getOrDefault(origin, new MirrorStats(-1, -1, 0, 0));
+		update(origin, current.withFailure(System.currentTimeMillis()));
+	}
+
+	/**
+	 * @return scheme://host:port of the source, or null for sources without a host
+	 */
+	public static String getOrigin(URI source) {
+		if (source == null || source.getHost() == null) {
+			return null;
+		}
+		String scheme = source.getScheme() == null ? "" : source.getScheme().toLowerCase();
+		int port = source.getPort();
+		if (port < 0) {
+			port = "https".equals(scheme) ? 443 : 80;
+		}
+		return scheme + "://" + source.getHost().toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * @return the estimated milliseconds to download REFERENCE_SIZE bytes from the origin
+	 */
+	private double getExpectedTime(String origin) {
+		MirrorStats current = origin == null ? null : stats.get(origin);
+		if (current == null) {
+			return Double.MAX_VALUE / 2;
+		}
+		if (current.getLatency() < 0 && current.getThroughput() < 0) {
+			return Double.MAX_VALUE / 2 + current.getFailures();
+		}
+		long throughput = current.getThroughput() > 0 ? current.getThroughput() : DEFAULT_THROUGHPUT;
+		double time = Math.max(0, current.getLatency()) + REFERENCE_SIZE * 1000.0 / throughput;
+		// Each failure in a row counts as much as the download itself
+		return time * (1 + current.getFailures());
+	}
+
+	/**
+	 * @return the time after its last check or failure at which a mirror is probed again.
+	 * Failed mirrors are probed again after a backoff rather than on every ranking, so
+	 * that a mirror that hangs does not hold up each download for the probe timeout.
+	 */
+	private long getProbeInterval(MirrorStats current) {
+		int failures = current.getFailures();
+		if (failures > 0) {
+			if (failures >= 32 || FAILURE_PROBE_DELAY > (probeTTL >> (failures - 1))) {
+				return probeTTL;
+			}
+			return FAILURE_PROBE_DELAY << (failures - 1);
+		}
+		return current.getLatency() < 0 ? 0 : probeTTL;
+	}
+
+	private void probeStale(List<URI> sources) {
+		long now = System.currentTimeMillis();
+		Map<String, URI> stale = new ConcurrentHashMap<>();
+		for (URI source : sources) {
+			String origin = getOrigin(source);
+			if (origin == null || !isHttp(source)) {
+				continue;
+			}
+			MirrorStats current = stats.get(origin);
+			if (current == null || now < current.getCheckTime()
+					|| now - current.getCheckTime() >= getProbeInterval(current)) {
+				stale.putIfAbsent(origin, source);
+			}
+		}
+		if (stale.isEmpty()) {
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(stale.size(), MAX_PROBE_THREADS), runnable -> {
+			Thread thread = new Thread(runnable, "mirror-probe");
+			thread.setDaemon(true);
+			return thread;
+		});
+		List<Future<?>> probes = new ArrayList<>();
+		for (Map.Entry<String, URI> entry : stale.entrySet()) {
+			probes.add(pool.submit(() -> probe(entry.getKey(), entry.getValue())));
+		}
+		pool.shutdown();
+		try {
+			// Mirrors that have not answered by then are treated as failed
+			if (!pool.awaitTermination(PROBE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				for (Map.Entry<String, URI> entry : stale.entrySet()) {
+					MirrorStats current = stats.get(entry.getKey());
+					if (current == null || current.getCheckTime() < now) {
+						recordFailure(entry.getValue());
+					}
+				}
+				pool.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			pool.shutdownNow();
+		}
+	}
+
+	private void probe(String origin, URI source) {
+		long start = System.nanoTime();
+		URLConnection connection = null;
+		try {
+			connection = HttpTransport.getShared().open(source);
+			HttpURLConnection httpConnection = (HttpURLConnection) connection;
+			httpConnection.setRequestMethod("HEAD");
+			httpConnection.setConnectTimeout((int) PROBE_TIMEOUT);
+			httpConnection.setReadTimeout((int) PROBE_TIMEOUT);
+			int code = httpConnection.getResponseCode();
+			long latency = (System.nanoTime() - start) / 1000000;
+			if (code >= 400) {
+				recordFailure(source);
+				return;
+			}
+			MirrorStats current = stats.getOrDefault(origin, new MirrorStats(-1, -1, 0, 0));
+			update(origin, current.withProbe(latency, System.currentTimeMillis()));
+		} catch (Exception e) {
+			recordFailure(source);
+		} finally {
+			if (connection != null) {
+				HttpTransport.getShared().release(connection);
+			}
+		}
+	}
+
+	private void update(String origin, MirrorStats newStats) {
+		stats.put(origin, newStats);
+		if (listener != null) {
+			listener.accept(origin, newStats);
+		}
+	}
+
+	private static boolean isHttp(URI source) {
+		String scheme = source.getScheme();
+		return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+	}
+}
@@ -0,0 +1,70 @@
+package htlauncher.updater;
+
+/**
+ * What is known about how fast a mirror serves files, kept between runs.
+ * Immutable; every measurement produces new stats.
+ */
+public class MirrorStats {
+	// Weight given to a new throughput measurement against the earlier ones
+	private static final double THROUGHPUT_SMOOTHING = 0.5;
+
+	// Milliseconds until the server answered a request, or -1 if never probed
+	private final long latency;
+	// Bytes per second measured over real downloads, or -1 if unknown
+	private final long throughput;
+	// Failures since the last successful request
+	private final int failures;
+	// When the mirror was last probed
+	private final long checkTime;
+
+	public MirrorStats(long latency, long throughput, int failures, long checkTime) {
+		this.latency = latency;
+		this.throughput = throughput;
+		this.failures = failures;
+		this.checkTime = checkTime;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public long getThroughput() {
+		return throughput;
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	public long getCheckTime() {
+		return checkTime;
+	}
+
+	/**
+	 * @return these stats with the result of a successful probe
+	 */
+	public MirrorStats withProbe(long latencyMillis, long time) {
+		return new MirrorStats(latencyMillis, throughput, 0, time);
+	}
+
+	/**
+	 * @return these stats with the throughput of a completed transfer
+	 */
+	public MirrorStats withTransfer(long bytesPerSecond) {
+		long smoothed = throughput < 0 ? bytesPerSecond
+				: (long) (THROUGHPUT_SMOOTHING * bytesPerSecond + (1 - THROUGHPUT_SMOOTHING) * throughput);
+		return new MirrorStats(latency, smoothed, 0, checkTime);
+	}
+
+	/**
+	 * @return these stats with one more failure
+	 */
+	public MirrorStats withFailure(long time) {
+		return new MirrorStats(latency, throughput, failures + 1, time);
+	}
+
+	@Override
+	public String toString() {
+		return "latency=" + latency + "ms throughput=" + throughput + "B/s failures=" + failures;
+	}
+}
@@ -0,0 +1,331 @@
+package htlauncher.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Sidecar record kept next to a partially downloaded file.
+ * Stores how many bytes of the file are valid and the validator the server
+ * sent for it, so the transfer can be continued with a Range request.
+ * Segmented downloads additionally record how far each of their segments got.
+ */
+public class PartialDownload {
+	private static final String META_SUFFIX = ".meta";
+
+	private static final String KEY_SOURCE = "source";
+	private static final String KEY_OFFSET = "offset";
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+	private static final String KEY_LENGTH = "length";
+	private static final String KEY_SEGMENTS = "segments";
+
+	private static final String SEGMENT_SEPARATOR = ",";
+	private static final String SEGMENT_FIELD_SEPARATOR = ":";
+
+	/**
+	 * A byte range of a segmented download.
+	 * Bytes from start up to, but excluding, position have been written.
+	 */
+	public static class Segment {
+		private final long start;
+		private final long end;
+		private volatile long position;
+
+		public Segment(long start, long position, long end) {
+			this.start = start;
+			this.position = position;
+			this.end = end;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		// Inclusive, as in a Range header
+		public long getEnd() {
+			return end;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public void setPosition(long position) {
+			this.position = position;
+		}
+
+		public boolean isComplete() {
+			return position > end;
+		}
+
+		public long getBytesDownloaded() {
+			return position - start;
+		}
+	}
+
+	private final File partFile;
+	private final File metaFile;
+	private final URI source;
+
+	// Number of bytes at the start of the partial file that are known to be valid
+	private long offset = 0;
+	private String eTag;
+	private String lastModified;
+
+	// Size of the complete file and progress of its segments, for segmented downloads only
+	private long length = -1;
+	private List<Segment> segments = new ArrayList<>();
+
+	// Set when the bytes were downloaded from another mirror, so no validator applies to them
+	private boolean resumeWithoutValidator = false;
+
+	private PartialDownload(File partFile, URI source) {
+		this.partFile = partFile;
+		this.metaFile = new File(partFile.getPath() + META_SUFFIX);
+		this.source = source;
+	}
+
+	/**
+	 * Loads the record for the given partial file.
+	 * A download left behind by one of the request's mirrors is continued from that mirror,
+	 * which becomes the request's source, but only if the completed file is checked against a digest,
+	 * as in moveToSource. Records left behind by a download from any other source are discarded.
+	 * @param partFile
+	 * @param request
+	 * @return the stored record, or an empty one if the download cannot be resumed
+	 */
+	public static PartialDownload load(File partFile, DownloadRequest request) {
+		PartialDownload partial = new PartialDownload(partFile, request.getSource());
+		if (!partial.metaFile.exists() || !partFile.exists()) {
+			partial.discard();
+			return partial;
+		}
+
+		Properties meta = new Properties();
+		try (InputStream in = new FileInputStream(partial.metaFile)) {
+			meta.load(in);
+			URI savedSource = findSavedSource(request, meta.getProperty(KEY_SOURCE));
+			if (savedSource != null) {
+				// The validators are those of the saved source, so the download continues from it
+				request.moveToSource(savedSource);
+				partial = new PartialDownload(partFile, savedSource);
+				partial.offset = Math.min(Long.parseLong(meta.getProperty(KEY_OFFSET, "0")), partFile.length());
+				partial.eTag = meta.getProperty(KEY_ETAG);
+				partial.lastModified = meta.getProperty(KEY_LAST_MODIFIED);
+				partial.length = Long.parseLong(meta.getProperty(KEY_LENGTH, "-1"));
+				partial.segments = parseSegments(meta.getProperty(KEY_SEGMENTS, ""));
+			}
+		} catch (IOException | NumberFormatException e) {
+			e.printStackTrace();
+		}
+
+		if (partial.offset == 0) {
+			partial.discard();
+		}
+		return partial;
+	}
+
+	/**
+	 * @return the source of the request the record was saved for, or null if it cannot be continued from
+	 */
+	private static URI findSavedSource(DownloadRequest request, String savedSource) {
+		if (savedSource == null) {
+			return null;
+		}
+		if (savedSource.equals(request.getSource().toString())) {
+			return request.getSource();
+		}
+		if (request.getExpectedDigest() == null) {
+			return null;
+		}
+		for (URI mirror : request.getMirrors()) {
+			if (savedSource.equals(mirror.toString())) {
+				return mirror;
+			}
+		}
+		return null;
+	}
+
+	private static List<Segment> parseSegments(String value) {
+		List<Segment> segments = new ArrayList<>();
+		for (String segment : value.split(SEGMENT_SEPARATOR)) {
+			String[] fields = segment.split(SEGMENT_FIELD_SEPARATOR);
+			if (fields.length == 3) {
+				segments.add(new Segment(Long.parseLong(fields[0]),
+						Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+			}
+		}
+		return segments;
+	}
+
+	private String stringifySegments() {
+		StringBuilder result = new StringBuilder();
+		for (Segment segment : segments) {
+			if (result.length() > 0) {
+				result.append(SEGMENT_SEPARATOR);
+			}
+			result.append(segment.getStart()).append(SEGMENT_FIELD_SEPARATOR)
+					.append(segment.getPosition()).append(SEGMENT_FIELD_SEPARATOR)
+					.append(segment.getEnd());
+		}
+		return result.toString();
+	}
+
+	public File getPartFile() {
+		return partFile;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * Takes the validators of the resource from the server's response.
+	 * @param connection
+	 */
+	public void setValidators(URLConnection connection) {
+		eTag = connection.getHeaderField("ETag");
+		lastModified = connection.getHeaderField("Last-Modified");
+	}
+
+	/**
+	 * @return the value to send in an If-Range header, or null if the server
+	 * gave no validator that can be used for it
+	 */
+	public String getValidator() {
+		// Weak entity tags cannot be used with If-Range
+		if (eTag != null && !eTag.startsWith("W/")) {
+			return eTag;
+		}
+		return lastModified;
+	}
+
+	public boolean canResume() {
+		return offset > 0 && (getValidator() != null || resumeWithoutValidator);
+	}
+
+	/**
+	 * Continues this download from another location of the same file.
+	 * The bytes downloaded so far are kept only if the completed file is checked against a digest,
+	 * since a validator from one server says nothing about the file on another.
+	 * Segmented progress is not carried over.
+	 * @param newSource
+	 * @param verifiedByDigest true if the completed file will be checked against its digest
+	 * @return the record for the new source
+	 */
+	public PartialDownload moveToSource(URI newSource, boolean verifiedByDigest) {
+		PartialDownload moved = new PartialDownload(partFile, newSource);
+		if (verifiedByDigest && !isSegmented() && offset > 0 && partFile.exists()) {
+			moved.offset = Math.min(offset, partFile.length());
+			moved.resumeWithoutValidator = true;
+			metaFile.delete();
+		} else {
+			discard();
+		}
+		return moved;
+	}
+
+	public boolean isSegmented() {
+		return !segments.isEmpty();
+	}
+
+	public List<Segment> getSegments() {
+		return segments;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Turns this into a segmented download of a file with the given size.
+	 * @param length
+	 * @param segments
+	 */
+	public void setSegments(long length, List<Segment> segments) {
+		this.length = length;
+		this.segments = segments;
+	}
+
+	/**
+	 * Writes the record to disk, replacing the previous one atomically.
+	 */
+	public synchronized void save() throws IOException {
+		if (getValidator() == null) {
+			return;
+		}
+		Properties meta = new Properties();
+		meta.setProperty(KEY_SOURCE, source.toString());
+		meta.setProperty(KEY_OFFSET, Long.toString(offset));
+		if (eTag != null) {
+			meta.setProperty(KEY_ETAG, eTag);
+		}
+		if (lastModified != null) {
+			meta.setProperty(KEY_LAST_MODIFIED, lastModified);
+		}
+		if (isSegmented()) {
+			meta.setProperty(KEY_LENGTH, Long.toString(length));
+			meta.setProperty(KEY_SEGMENTS, stringifySegments());
+		}
+
+		File tempFile = new File(metaFile.getPath() + ".tmp");
+		try (OutputStream out = new FileOutputStream(tempFile)) {
+			meta.store(out, null);
+		}
+		Files.move(tempFile.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Keeps the partial file for a later attempt if the server allows resuming,
+	 * otherwise deletes it.
+	 */
+	public void suspend() {
+		if (!canResume()) {
+			discard();
+			return;
+		}
+		try {
+			save();
+		} catch (IOException e) {
+			e.printStackTrace();
+			discard();
+		}
+	}
+
+	/**
+	 * Deletes the partial file and its record.
+	 */
+	public void discard() {
+		offset = 0;
+		eTag = null;
+		lastModified = null;
+		length = -1;
+		segments = new ArrayList<>();
+		resumeWithoutValidator = false;
+		partFile.delete();
+		metaFile.delete();
+	}
+
+	/**
+	 * Removes the record once the partial file has been completed and moved away.
+	 */
+	public void complete() {
+		metaFile.delete();
+	}
+}
@@ -0,0 +1,104 @@
+package htlauncher.updater;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.nio.file.FileSystemException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Decides whether a failed download is tried again, and how long to wait before it.
+ * The wait doubles with each attempt up to a maximum, and half of it is random,
+ * so that launchers that failed together do not all try again at the same moment.
+ *
+ * Errors are retried unless they are of a class that another attempt cannot fix:
+ * local file system errors, unknown hosts, malformed addresses and missing files.
+ */
+public class RetryPolicy {
+	// Default number of attempts, including the first
+	public static final int DEFAULT_ATTEMPTS = 5;
+
+	// Default wait in milliseconds before the second attempt, and the longest wait
+	public static final long DEFAULT_DELAY = 1000;
+	public static final long DEFAULT_MAX_DELAY = 30 * 1000;
+
+	private final Random random = new Random();
+
+	private volatile int attempts = DEFAULT_ATTEMPTS;
+	private volatile long delay = DEFAULT_DELAY;
+	private volatile long maxDelay = DEFAULT_MAX_DELAY;
+
+	private final List<Class<? extends IOException>> nonRetryable = new ArrayList<>(Arrays.asList(
+			FileSystemException.class, UnknownHostException.class,
+			MalformedURLException.class, FileNotFoundException.class));
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @param attempts number of attempts, including the first; 1 to never try again
+	 */
+	public void setAttempts(int attempts) {
+		this.attempts = Math.max(1, attempts);
+	}
+
+	/**
+	 * Sets the wait before the second attempt, which doubles with each further attempt.
+	 * @param millis
+	 */
+	public void setDelay(long millis) {
+		delay = Math.max(0, millis);
+	}
+
+	/**
+	 * Sets the longest wait between two attempts.
+	 * @param millis
+	 */
+	public void setMaxDelay(long millis) {
+		maxDelay = Math.max(0, millis);
+	}
+
+	/**
+	 * Makes errors of the given class, and of its subclasses, fail at once.
+	 * @param errorClass
+	 */
+	public synchronized void addNonRetryable(Class<? extends IOException> errorClass) {
+		nonRetryable.add(errorClass);
+	}
+
+	/**
+	 * @param error the error of the failed attempt, or null if it is not known
+	 * @return true if another attempt may succeed where this one failed
+	 */
+	public synchronized boolean isRetryable(IOException error) {
+		if (error == null) {
+			return false;
+		}
+		for (Class<? extends IOException> errorClass : nonRetryable) {
+			if (errorClass.isInstance(error)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param attempt number of the attempt that failed, from 1
+	 * @return the time in milliseconds to wait before the next attempt
+	 */
+	public long getDelay(int attempt) {
+		long base = maxDelay;
+		// Stops doubling once the maximum is reached, before the shift can overflow
+		if (attempt < 32 && delay < (maxDelay >> (attempt - 1))) {
+			base = delay << (attempt - 1);
+		}
+		synchronized (random) {
+			return base / 2 + (long) (random.nextDouble() * (base - base / 2));
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package htlauncher.updater;
+
+import htlauncher.updater.PartialDownload.Segment;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a single file over several connections at once.
+ * Each connection fetches one byte range of the file and writes it
+ * straight into its place in a preallocated partial file.
+ */
+public class SegmentedDownload {
+
+	private final URI source;
+	private final PartialDownload partial;
+	private final DownloadProgress progress;
+	private final int segmentCount;
+	private final long minSegmentSize;
+	private final BandwidthLimiter[] limiters;
+
+	// Bytes downloaded over all segments
+	private final AtomicLong bytesDownloaded = new AtomicLong();
+
+	// Set if the server stops honouring range requests part way through
+	private volatile boolean rangeRejected = false;
+
+	public SegmentedDownload(URI source, PartialDownload partial, DownloadProgress progress,
+			int segmentCount, long minSegmentSize, BandwidthLimiter[] limiters) {
+		this.source = source;
+		this.partial = partial;
+		this.progress = progress;
+		this.segmentCount = segmentCount;
+		this.minSegmentSize = minSegmentSize;
+		this.limiters = limiters;
+	}
+
+	/**
+	 * Downloads the file into the partial file if the server supports range requests.
+	 * @return false if the file has to be downloaded in a single stream instead,
+	 * because the server does not support ranges or the file is too small to split
+	 * @throws IOException if any segment fails. Completed bytes are kept in the partial download.
+	 */
+	public boolean run() throws IOException {
+		HttpURLConnection head = (HttpURLConnection) FileDownloader.openConnection(source);
+		head.setRequestMethod("HEAD");
+		if (head.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			HttpTransport.getShared().release(head);
+			return false;
+		}
+		boolean acceptsRanges = "bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges"));
+		long length = head.getContentLengthLong();
+		String previousValidator = partial.getValidator();
+		partial.setValidators(head);
+
+		if (partial.isSegmented()
+				&& (partial.getLength() != length || !Objects.equals(partial.getValidator(), previousValidator))) {
+			// The file changed on the server since the last attempt
+			partial.discard();
+			partial.setValidators(head);
+		}
+		HttpTransport.getShared().release(head);
+
+		if (!acceptsRanges || partial.getValidator() == null || length < 2 * minSegmentSize) {
+			if (partial.isSegmented()) {
+				partial.discard();
+			}
+			return false;
+		}
+		if (!partial.isSegmented()) {
+			partial.setSegments(length, planSegments(length));
+		}
+
+		boolean fetched;
+		try (RandomAccessFile file = new RandomAccessFile(partial.getPartFile(), "rw")) {
+			if (file.length() != length) {
+				file.setLength(length);
+			}
+			fetched = fetchSegments(file.getChannel());
+		} finally {
+			partial.setOffset(bytesDownloaded.get());
+		}
+		if (!fetched) {
+			partial.discard();
+		}
+		return fetched;
+	}
+
+	private List<Segment> planSegments(long length) {
+		int count = (int) Math.max(1, Math.min(segmentCount, length / minSegmentSize));
+		long segmentSize = length / count;
+		List<Segment> segments = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			long start = i * segmentSize;
+			long end = i == count - 1 ? length - 1 : start + segmentSize - 1;
+			segments.add(new Segment(start, start, end));
+		}
+		return segments;
+	}
+
+	/**
+	 * @return false if the server ignored a range request
+	 */
+	private boolean fetchSegments(FileChannel file) throws IOException {
+		List<Segment> pending = new ArrayList<>();
+		for (Segment segment : partial.getSegments()) {
+			bytesDownloaded.addAndGet(segment.getBytesDownloaded());
+			if (!segment.isComplete()) {
+				pending.add(segment);
+			}
+		}
+		progress.setTotalDownloadBytes(partial.getLength());
+		progress.setBytesDownloaded(bytesDownloaded.get());
+		if (pending.isEmpty()) {
+			return true;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(pending.size());
+		List<Future<?>> results = new ArrayList<>();
+		for (Segment segment : pending) {
+			results.add(pool.submit(() -> {
+				fetchSegment(segment, file);
+				return null;
+			}));
+		}
+		pool.shutdown();
+
+		IOException failure = null;
+		for (Future<?> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof IOException
+							? (IOException) e.getCause()
+							: new IOException(e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = new IOException(e);
+			}
+		}
+		if (rangeRejected) {
+			return false;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return true;
+	}
+
+	private void fetchSegment(Segment segment, FileChannel file) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) FileDownloader.openConnection(source);
+		connection.setRequestProperty("Range", "bytes=" + segment.getPosition() + "-" + segment.getEnd());
+		connection.setRequestProperty("If-Range", partial.getValidator());
+		if (!FileDownloader.isRangeAccepted(connection, segment.getPosition())) {
+			rangeRejected = true;
+			HttpTransport.getShared().release(connection);
+			throw new IOException("Server did not return the requested range of " + source);
+		}
+
+		long segmentLength = segment.getEnd() - segment.getPosition() + 1;
+		try (ReadableByteChannel input = BandwidthLimiter.throttle(
+				Channels.newChannel(connection.getInputStream()), limiters)) {
+			ChannelTransfer.transfer(input, file, segment.getPosition(), segmentLength, null,
+					bytes -> segmentTransferred(segment, bytes));
+		}
+		if (!segment.isComplete()) {
+			throw new IOException("Connection closed before the end of the segment");
+		}
+	}
+
+	private void segmentTransferred(Segment segment, long bytes) throws IOException {
+		long position = segment.getPosition();
+		segment.setPosition(position + bytes);
+		bytesDownloaded.addAndGet(bytes);
+		progress.addBytesDownloaded(bytes);
+
+		// Checkpoint whenever the segment crosses a multiple of the checkpoint interval
+		long checkpoint = FileDownloader.CHECKPOINT_INTERVAL;
+		if ((position - segment.getStart()) / checkpoint != (segment.getPosition() - segment.getStart()) / checkpoint) {
+			partial.setOffset(bytesDownloaded.get());
+			partial.save();
+		}
+	}
+}
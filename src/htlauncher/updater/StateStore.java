@@ -0,0 +1,359 @@
+package htlauncher.updater;
+
+import htlauncher.utilities.Version;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log holding the updater's state between runs.
+ *
+ * Each save appends one record with the values that changed, so a save costs
+ * a single append and sync. A record is only used if its checksum matches,
+ * so a crash during a save loses that save and nothing before it.
+ * The log is read back in one read into a heap buffer and rewritten as
+ * a single record once it holds too many records.
+ * <pre>
+ * int "HTST", int format               header
+ * int length, int crc32, bytes         record, repeated
+ *
+ * record: byte flags, [string uri, string etag, string lastModified, long checkTime],
+ *         int count, (string name, int major, int minor, int patch) * count,
+ *         [int count, (string origin, long latency, long throughput, int failures, long checkTime) * count]
+ * string: int length (-1 for null), UTF-8 bytes
+ * </pre>
+ */
+public class StateStore {
+	private static final int MAGIC = 0x48545354;
+	private static final int FORMAT = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private static final int FLAG_APP_DESC = 1;
+	private static final int FLAG_MIRRORS = 2;
+
+	// Number of records in the log after which it is compacted
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 64;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * State written by one save, or the state merged from the whole log.
+	 * The app descriptor fields are only part of the record if hasAppDesc is set,
+	 * and mirror stats only if there are any.
+	 */
+	public static class Record {
+		private boolean hasAppDesc = false;
+		private String appDescURI;
+		private String appDescETag;
+		private String appDescLastModified;
+		private long appDescCheckTime = 0;
+		private Map<String, Version> versions = new LinkedHashMap<>();
+		private Map<String, MirrorStats> mirrorStats = new LinkedHashMap<>();
+
+		public void setAppDesc(String uri, String eTag, String lastModified, long checkTime) {
+			hasAppDesc = true;
+			appDescURI = uri;
+			appDescETag = eTag;
+			appDescLastModified = lastModified;
+			appDescCheckTime = checkTime;
+		}
+
+		public boolean hasAppDesc() {
+			return hasAppDesc;
+		}
+
+		public String getAppDescURI() {
+			return appDescURI;
+		}
+
+		public String getAppDescETag() {
+			return appDescETag;
+		}
+
+		public String getAppDescLastModified() {
+			return appDescLastModified;
+		}
+
+		public long getAppDescCheckTime() {
+			return appDescCheckTime;
+		}
+
+		public Map<String, Version> getVersions() {
+			return versions;
+		}
+
+		/**
+		 * @return stats of each mirror, keyed by origin
+		 */
+		public Map<String, MirrorStats> getMirrorStats() {
+			return mirrorStats;
+		}
+
+		/**
+		 * Applies a later record on top of this one.
+		 */
+		private void merge(Record later) {
+			if (later.hasAppDesc) {
+				setAppDesc(later.appDescURI, later.appDescETag, later.appDescLastModified,
+						later.appDescCheckTime);
+			}
+			versions.putAll(later.versions);
+			mirrorStats.putAll(later.mirrorStats);
+		}
+	}
+
+	private final File file;
+	private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	// State of the whole log
+	private Record state = new Record();
+
+	// Length of the valid part of the log; new records are written from here
+	private long validLength = 0;
+	private int recordCount = 0;
+
+	public StateStore(File file) {
+		this.file = file;
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Reads the log, ignoring a torn or corrupted record at its end and everything after it.
+	 * @return the state after all valid records
+	 */
+	public synchronized Record load() throws IOException {
+		state = new Record();
+		validLength = 0;
+		recordCount = 0;
+		if (!file.exists()) {
+			return state;
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				return state;
+			}
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("State file too large: " + file);
+			}
+			// Read rather than mapped: a mapping cannot be released on demand, and while it
+			// lives Windows refuses to replace the file when the log is compacted
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					break;
+				}
+			}
+			buffer.flip();
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+				throw new IOException("Unknown state file format: " + file);
+			}
+			validLength = HEADER_SIZE;
+			CRC32 crc = new CRC32();
+			while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length < 0 || length > buffer.remaining()) {
+					break;
+				}
+				ByteBuffer payload = buffer.slice();
+				payload.limit(length);
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				payload.rewind();
+				Record record;
+				try {
+					record = readRecord(payload);
+				} catch (BufferUnderflowException e) {
+					break;
+				}
+				state.merge(record);
+				buffer.position(buffer.position() + length);
+				validLength = buffer.position();
+				recordCount++;
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Appends a record and syncs it to disk.
+	 * The record is written over any invalid bytes found at the end of the log.
+	 * @param record
+	 */
+	public synchronized void append(Record record) throws IOException {
+		if (validLength < HEADER_SIZE) {
+			state.merge(record);
+			rewrite(state);
+			return;
+		}
+		ByteBuffer bytes = encode(record);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			long position = validLength;
+			while (bytes.hasRemaining()) {
+				position += channel.write(bytes, position);
+			}
+			channel.force(false);
+			validLength = position;
+		}
+		state.merge(record);
+		recordCount++;
+
+		if (recordCount > compactionThreshold) {
+			try {
+				compact();
+			} catch (IOException e) {
+				// The log is still valid, so compaction can wait for a later save
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Replaces the log with a single record holding the current state.
+	 */
+	public synchronized void compact() throws IOException {
+		rewrite(state);
+	}
+
+	/**
+	 * Replaces the log with one holding only the given record.
+	 * The new log is written to a temporary file that is then renamed over the old one.
+	 */
+	private void rewrite(Record record) throws IOException {
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		ByteBuffer bytes = ByteBuffer.allocate(HEADER_SIZE);
+		bytes.putInt(MAGIC).putInt(FORMAT).flip();
+		ByteBuffer recordBytes = encode(record);
+		long length = bytes.remaining() + recordBytes.remaining();
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			while (recordBytes.hasRemaining()) {
+				channel.write(recordBytes);
+			}
+			channel.force(true);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		validLength = length;
+		recordCount = 1;
+	}
+
+	/**
+	 * Sets the number of records after which the log is compacted.
+	 * @param records
+	 */
+	public void setCompactionThreshold(int records) {
+		compactionThreshold = Math.max(1, records);
+	}
+
+	private static ByteBuffer encode(Record record) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(payload);
+		output.writeByte((record.hasAppDesc ? FLAG_APP_DESC : 0)
+				| (record.mirrorStats.isEmpty() ? 0 : FLAG_MIRRORS));
+		if (record.hasAppDesc) {
+			writeString(output, record.appDescURI);
+			writeString(output, record.appDescETag);
+			writeString(output, record.appDescLastModified);
+			output.writeLong(record.appDescCheckTime);
+		}
+		output.writeInt(record.versions.size());
+		for (Entry<String, Version> entry : record.versions.entrySet()) {
+			Version version = entry.getValue();
+			writeString(output, entry.getKey());
+			output.writeInt(version.getMajor());
+			output.writeInt(version.getMinor());
+			output.writeInt(version.getPatch());
+		}
+		if (!record.mirrorStats.isEmpty()) {
+			output.writeInt(record.mirrorStats.size());
+			for (Entry<String, MirrorStats> entry : record.mirrorStats.entrySet()) {
+				MirrorStats stats = entry.getValue();
+				writeString(output, entry.getKey());
+				output.writeLong(stats.getLatency());
+				output.writeLong(stats.getThroughput());
+				output.writeInt(stats.getFailures());
+				output.writeLong(stats.getCheckTime());
+			}
+		}
+		output.flush();
+
+		byte[] bytes = payload.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length);
+		buffer.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+		return buffer;
+	}
+
+	private static Record readRecord(ByteBuffer payload) {
+		Record record = new Record();
+		int flags = payload.get();
+		if ((flags & FLAG_APP_DESC) != 0) {
+			record.setAppDesc(readString(payload), readString(payload), readString(payload),
+					payload.getLong());
+		}
+		int count = payload.getInt();
+		for (int i = 0; i < count; i++) {
+			String name = readString(payload);
+			record.versions.put(name, new Version(payload.getInt(), payload.getInt(), payload.getInt()));
+		}
+		if ((flags & FLAG_MIRRORS) != 0) {
+			count = payload.getInt();
+			for (int i = 0; i < count; i++) {
+				String origin = readString(payload);
+				record.mirrorStats.put(origin, new MirrorStats(payload.getLong(), payload.getLong(),
+						payload.getInt(), payload.getLong()));
+			}
+		}
+		return record;
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(ByteBuffer payload) {
+		int length = payload.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > payload.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		payload.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -2,25 +2,32 @@ package htlauncher.updater;
 
 import htlauncher.launcher.AppLauncher;
 import htlauncher.utilities.AppDescriptor;
+import htlauncher.utilities.AppDescriptorLoader;
 import htlauncher.utilities.ComponentDescriptor;
 import htlauncher.utilities.Utilities;
 import htlauncher.utilities.Version;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An interface to all the local data created and used by the updater.
@@ -30,51 +37,273 @@ public class StorageManager {
 	// Temporary location where downloaded files are placed.
 	public static final String UPDATE_FOLDER = "update/";
 	
-	// Eventual location of application files.
-	private static final String LAUNCH_FOLDER = "app/";
+	// File in each generation listing the component versions it holds
+	public static final String GENERATION_VERSIONS_FILE = "generation.versions";
+
+	// File in the update folder listing the components kept there by an update that did not finish.
+	// The folder is not installed while it exists.
+	public static final String INCOMPLETE_VERSIONS_FILE = "incomplete.versions";
+
+	// Location where downloaded patches are kept until they have been applied.
+	public static final String PATCH_FOLDER = "patch/";
 	
-	// Location of the file that the updater uses to maintain state after downloading all components.
-	public static final String UPDATER_INFO_FILEPATH = "updater_data";
+	// Location of the log that the updater uses to maintain state after downloading all components.
+	public static final String UPDATER_INFO_FILEPATH = "updater_state";
+
+	// Text file used for the same purpose by earlier versions, migrated on the first run
+	public static final String LEGACY_UPDATER_INFO_FILEPATH = "updater_data";
 	
-	// Marker used to partition the updater info file.
+	// Marker used to partition the legacy updater info file.
 	private static final String SPLIT_MARKER = "<-sp->";
 
 	private File appDescFile;
-	private File updaterInfoFile;
+	private File legacyUpdaterInfoFile;
+	private StateStore stateStore;
+
+	// Eventual location of application files.
+	private InstallGenerations generations = new InstallGenerations(new File("."));
 
 	// The updated URI of the app descriptor, taken from previously-downloaded app descriptor
 	private URI serverAppDescURI;
 
+	// Validators sent by the server with the current app descriptor, and the time it was last checked
+	private String appDescETag;
+	private String appDescLastModified;
+	private long appDescCheckTime = 0;
+
 	private AppDescriptor appDescriptor;
 
-	// All versions that have already been downloaded
-	private HashMap<String, Version> downloadedVersions = new HashMap<>();
+	// All versions that have already been downloaded.
+	// Updated by concurrent component downloads.
+	private Map<String, Version> downloadedVersions = new ConcurrentHashMap<>();
+
+	// Versions of the components kept in the update folder by an update that did not finish
+	private Map<String, Version> incompleteVersions = new ConcurrentHashMap<>();
+
+	// Versions changed since the updater data was last saved
+	private Map<String, Version> changedVersions = new ConcurrentHashMap<>();
+
+	// What is known about each mirror, keyed by origin, and the stats changed since the last save
+	private Map<String, MirrorStats> mirrorStats = new ConcurrentHashMap<>();
+	private Map<String, MirrorStats> changedMirrorStats = new ConcurrentHashMap<>();
 
 	public StorageManager(String appDescPath) {
 		appDescFile = new File(appDescPath);
-		updaterInfoFile = new File(UPDATER_INFO_FILEPATH);
-
-		// If there is a previously-downloaded file in the temporary folder, move it
-		moveLastDownload();
+		legacyUpdaterInfoFile = new File(LEGACY_UPDATER_INFO_FILEPATH);
+		stateStore = new StateStore(new File(UPDATER_INFO_FILEPATH));
 
 		createDownloadDirectory();
 		loadUpdaterData();
+		loadIncompleteVersions();
+
+		// If there is a previously-downloaded generation, switch to it
+		moveLastDownload();
+		generations.collectGarbageInBackground();
 	}
 
 	/**
-	 * Moves downloads from the temporary folder to the launch folder.
+	 * Makes the last download the application generation in use.
+	 * Downloads still in the temporary folder are first staged as a new generation.
 	 */
-	public static void moveLastDownload() {
+	public void moveLastDownload() {
 		try {
 			File downloadDir = new File(UPDATE_FOLDER);
-			if (downloadDir.exists() && downloadDir.list().length > 0) {
-				moveAndReplaceExistingFiles(UPDATE_FOLDER, LAUNCH_FOLDER);
+			if (downloadDir.exists() && downloadDir.list().length > 0 && !isDownloadIncomplete()) {
+				writeGenerationVersions(new File(downloadDir, GENERATION_VERSIONS_FILE));
+				generations.stage(downloadDir);
+			}
+			generations.activatePending();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Finds the launch path of the installed application from the files on disk alone,
+	 * without loading the updater data, so that the application can be started before the updater.
+	 * Makes a pending generation current first, as moveLastDownload would.
+	 * @param appDescPath
+	 * @return the launch path, or null if the application is not installed or there are
+	 * downloads in the temporary folder that moveLastDownload has to install first
+	 */
+	public static String findInstalledLaunchPath(String appDescPath) {
+		String[] downloads = new File(UPDATE_FOLDER).list();
+		File appDescFile = new File(appDescPath);
+		if ((downloads != null && downloads.length > 0 && !isDownloadIncomplete()) || !appDescFile.exists()) {
+			return null;
+		}
+		InstallGenerations generations = new InstallGenerations(new File("."));
+		try {
+			generations.activatePending();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		AppDescriptor descriptor = AppDescriptorLoader.load(appDescFile);
+		if (descriptor == null || descriptor.getLaunchPath() == null) {
+			return null;
+		}
+		File current = generations.getCurrentDirectory();
+		if (!new File(current, descriptor.getLaunchPath().toString()).exists()) {
+			return null;
+		}
+		return current.getName() + "/" + descriptor.getLaunchPath().toString();
+	}
+
+	/**
+	 * Builds a new application generation from the downloads in the temporary folder.
+	 * It is used from the next start, or once moveLastDownload is called.
+	 * @return true if the generation was staged
+	 */
+	public boolean stageDownload() {
+		try {
+			writeGenerationVersions(new File(UPDATE_FOLDER, GENERATION_VERSIONS_FILE));
+			generations.stage(new File(UPDATE_FOLDER));
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			Utilities.showWarning("Update installation failed",
+					"Cannot install the downloaded update. Check directory permissions.");
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the update folder holds the components of an update that did not finish
+	 */
+	private static boolean isDownloadIncomplete() {
+		return new File(UPDATE_FOLDER, INCOMPLETE_VERSIONS_FILE).exists();
+	}
+
+	private void loadIncompleteVersions() {
+		File file = new File(UPDATE_FOLDER, INCOMPLETE_VERSIONS_FILE);
+		if (!file.exists()) {
+			return;
+		}
+		Properties versions = new Properties();
+		try (InputStream input = new FileInputStream(file)) {
+			versions.load(input);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		for (String name : versions.stringPropertyNames()) {
+			incompleteVersions.put(name, new Version(versions.getProperty(name)));
+		}
+	}
+
+	/**
+	 * @param component
+	 * @return true if the component's latest version was downloaded by an update that did not
+	 * finish, and is still in the update folder
+	 */
+	public boolean hasIncompleteDownload(ComponentDescriptor component) {
+		Version version = incompleteVersions.get(component.getComponentName());
+		if (version == null || component.getVersion().compareTo(version) != 0) {
+			return false;
+		}
+		File file = new File(UPDATE_FOLDER, component.getLocalURI().toString());
+		return file.isFile() && (component.getSize() < 0 || file.length() == component.getSize());
+	}
+
+	/**
+	 * Keeps the given components in the update folder after an update that did not finish,
+	 * so that a later update does not download them again. Anything else in the folder is
+	 * deleted. The folder is not installed until an update finishes.
+	 * @param components components of the update that were downloaded and verified
+	 */
+	public void keepIncompleteDownload(List<ComponentDescriptor> components) {
+		Properties versions = new Properties();
+		Set<String> kept = new HashSet<>();
+		kept.add(INCOMPLETE_VERSIONS_FILE);
+		incompleteVersions.clear();
+		for (ComponentDescriptor component : components) {
+			versions.setProperty(component.getComponentName(), component.getVersion().toString());
+			incompleteVersions.put(component.getComponentName(), component.getVersion());
+			// Folders in the update folder are installed whole, so a component keeps its top folder
+			kept.add(component.getLocalURI().toString().split("/")[0]);
+		}
+		File downloadDir = new File(UPDATE_FOLDER);
+		File[] files = downloadDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!kept.contains(file.getName())) {
+					InstallGenerations.delete(file);
+				}
+			}
+		}
+		if (components.isEmpty()) {
+			clearIncompleteDownload();
+			return;
+		}
+		File file = new File(downloadDir, INCOMPLETE_VERSIONS_FILE);
+		File tempFile = new File(downloadDir, INCOMPLETE_VERSIONS_FILE + ".tmp");
+		try {
+			try (OutputStream output = new FileOutputStream(tempFile)) {
+				versions.store(output, null);
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Lets the update folder be installed once the update that left components in it has finished.
+	 */
+	public void clearIncompleteDownload() {
+		incompleteVersions.clear();
+		new File(UPDATE_FOLDER, INCOMPLETE_VERSIONS_FILE).delete();
+	}
+
+	/**
+	 * Goes back to the generation installed before the current one,
+	 * along with the component versions it holds.
+	 * @return true if there was an earlier generation
+	 */
+	public boolean rollBackGeneration() {
+		try {
+			File generation = generations.rollBack();
+			if (generation == null) {
+				return false;
+			}
+			Properties versions = new Properties();
+			File versionsFile = new File(generation, GENERATION_VERSIONS_FILE);
+			if (versionsFile.exists()) {
+				try (InputStream input = new FileInputStream(versionsFile)) {
+					versions.load(input);
+				}
+			}
+			downloadedVersions.clear();
+			for (String name : versions.stringPropertyNames()) {
+				updateDownloadedVersion(name, new Version(versions.getProperty(name)));
 			}
+			saveUpdaterData();
+			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private void writeGenerationVersions(File file) throws IOException {
+		Properties versions = new Properties();
+		for (Entry<String, Version> entry : downloadedVersions.entrySet()) {
+			versions.setProperty(entry.getKey(), entry.getValue().toString());
+		}
+		try (OutputStream output = new FileOutputStream(file)) {
+			versions.store(output, null);
 		}
 	}
 
+	/**
+	 * Sets the number of earlier application generations kept for rolling back.
+	 * @param generations
+	 */
+	public void setRetainedGenerations(int generations) {
+		this.generations.setRetainedGenerations(generations);
+	}
+
 	private static void createDownloadDirectory() {
 		File downloadDir = new File(UPDATE_FOLDER);
 		if (!downloadDir.exists()) {
@@ -83,31 +312,47 @@ public class StorageManager {
 	}
 
 	/**
-	 * Attempts to load updater date file, creating it if it doesn't exist.
+	 * Attempts to load the updater data, migrating it from the legacy file if needed.
 	 */
 	private void loadUpdaterData() {
 		try {
-			if (!updaterInfoFile.exists()) {
-				updaterInfoFile.createNewFile();
-			} else {
-				loadUpdaterDataFromFile();
+			if (!stateStore.exists() && legacyUpdaterInfoFile.exists()) {
+				migrateLegacyUpdaterData();
+				return;
 			}
+			StateStore.Record state = stateStore.load();
+			if (state.hasAppDesc()) {
+				serverAppDescURI = new URI(state.getAppDescURI());
+				appDescETag = state.getAppDescETag();
+				appDescLastModified = state.getAppDescLastModified();
+				appDescCheckTime = state.getAppDescCheckTime();
+			}
+			downloadedVersions.putAll(state.getVersions());
+			mirrorStats.putAll(state.getMirrorStats());
 		} catch (IOException e) {
 			e.printStackTrace();
-			Utilities.showWarning("Launcher cache file creation failed",
-					"Cannot create or open application launcher cache file. Check directory permissions");
+			Utilities.showWarning("Launcher cache read failed.",
+					"Cannot read application launcher data. Check directory permissions.");
+		} catch (URISyntaxException e) {
+			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Loads and parses the data file, extracting information about what versions have been downloaded.
+	 * Loads the legacy data file and writes its contents to the state log, then deletes it.
+	 * The first line holds the app descriptor URI, optionally followed by its validators and check time.
 	 */
-	private void loadUpdaterDataFromFile() {
-		try {
-			BufferedReader fileReader = new BufferedReader(new FileReader(updaterInfoFile));
+	private void migrateLegacyUpdaterData() {
+		try (BufferedReader fileReader = new BufferedReader(new FileReader(legacyUpdaterInfoFile))) {
 			String storedPath = fileReader.readLine();
 			if (storedPath != null) {
-				serverAppDescURI = new URI(storedPath);
+				String[] pathArr = storedPath.split(SPLIT_MARKER, -1);
+				serverAppDescURI = new URI(pathArr[0]);
+				if (pathArr.length == 4) {
+					appDescETag = emptyToNull(pathArr[1]);
+					appDescLastModified = emptyToNull(pathArr[2]);
+					appDescCheckTime = parseCheckTime(pathArr[3]);
+				}
 			}
 	
 			String line;
@@ -119,40 +364,36 @@ public class StorageManager {
 					downloadedVersions.put(name, ver);
 				}
 			}
-			fileReader.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 			Utilities.showWarning("Launcher cache read failed.",
 					"Cannot read application launcher data. Check directory permissions.");
+			return;
 		} catch (URISyntaxException e) {
 			e.printStackTrace();
 		}
+
+		changedVersions.putAll(downloadedVersions);
+		if (saveUpdaterData()) {
+			legacyUpdaterInfoFile.delete();
+		}
 	}
 
-	/**
-	 * Deletes a file or directory
-	 * @param filePath
-	 */
-	private static void remove(File filePath) {
-		if (filePath.isDirectory()) {
-			String[] dirItems = filePath.list();
-			if (dirItems.length == 0) {
-				filePath.delete();
-			} else {
-				for (String item : dirItems) {
-					File itemPath = new File(filePath, item);
-					remove(itemPath);
-				}
-			}
-		} else {
-			filePath.delete();
+	private static String emptyToNull(String value) {
+		return value.isEmpty() ? null : value;
+	}
+
+	private static long parseCheckTime(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return 0;
 		}
 	}
 
 	public void updateDownloadedVersion(String name, Version version) {
 		downloadedVersions.put(name, version);
+		changedVersions.put(name, version);
 	}
 
 	public Version getDownloadedVersion(String name) {
@@ -163,28 +404,46 @@ public class StorageManager {
 		return ver;
 	}
 
+	/**
+	 * @return the stats of every mirror used in earlier runs, keyed by origin
+	 */
+	public Map<String, MirrorStats> getMirrorStats() {
+		return mirrorStats;
+	}
+
+	/**
+	 * Records the stats of a mirror, to be saved with the next save of the updater data.
+	 * @param origin
+	 * @param stats
+	 */
+	public void updateMirrorStats(String origin, MirrorStats stats) {
+		mirrorStats.put(origin, stats);
+		changedMirrorStats.put(origin, stats);
+	}
+
 	/**
 	 * Saves data to the updater info file.
-	 * Includes the last-known app descriptor URL and information about downloaded versions.
+	 * Appends the last-known app descriptor URL with its validators,
+	 * and the downloaded versions and mirror stats that changed since the last save.
+	 * @return true if the data was saved
 	 */
-	public void saveUpdaterData() {
+	public boolean saveUpdaterData() {
+		StateStore.Record record = new StateStore.Record();
+		record.setAppDesc(getServerAppDescURI().toString(), appDescETag, appDescLastModified, appDescCheckTime);
+		Map<String, Version> saved = new HashMap<>(changedVersions);
+		record.getVersions().putAll(saved);
+		Map<String, MirrorStats> savedMirrorStats = new HashMap<>(changedMirrorStats);
+		record.getMirrorStats().putAll(savedMirrorStats);
 		try {
-			BufferedWriter fileWriter = new BufferedWriter(new FileWriter(updaterInfoFile));
-			fileWriter.write(serverAppDescURI.toString());
-			fileWriter.write("\n");
-
-			for (Entry<String, Version> entry : downloadedVersions.entrySet()) {
-				String entryString = entry.getKey() + SPLIT_MARKER + entry.getValue().toString();
-				fileWriter.write(entryString);
-				fileWriter.write("\n");
-			}
-			fileWriter.flush();
-			fileWriter.close();
-
+			stateStore.append(record);
+			changedVersions.entrySet().removeAll(saved.entrySet());
+			changedMirrorStats.entrySet().removeAll(savedMirrorStats.entrySet());
+			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
 			Utilities.showWarning("Launcher data save failed",
 					"Cannot save application launcher data to disk. Check directory permissions.");
+			return false;
 		}
 	}
 
@@ -197,33 +456,101 @@ public class StorageManager {
 				return "";
 			}
 		}
-		String path = LAUNCH_FOLDER + appDescriptor.getLaunchPath().toString();
+		String path = generations.getCurrentDirectory().getName() + "/" + appDescriptor.getLaunchPath().toString();
 		return path;
 	}
 
 	/**
-	 * Loads the app descriptor if it exists
+	 * Loads the app descriptor if it exists and can be read
 	 * @return true if the app descriptor was loaded
 	 */
 	public boolean loadAppDesc() {
-		if (appDescFile.exists()) {
-			appDescriptor = AppDescriptor.unserialiseFromXMLFile(appDescFile);
-			serverAppDescURI = appDescriptor.getServerAppDescriptorURI();
-			return true;
+		if (!appDescFile.exists()) {
+			return false;
+		}
+		AppDescriptor descriptor = AppDescriptorLoader.load(appDescFile);
+		if (descriptor == null) {
+			return false;
 		}
-		return false;
+		appDescriptor = descriptor;
+		serverAppDescURI = appDescriptor.getServerAppDescriptorURI();
+		return true;
+	}
+
+	/**
+	 * @return true if the app descriptor has been downloaded before
+	 */
+	public boolean hasAppDesc() {
+		return appDescFile.exists();
+	}
+
+	public String getAppDescETag() {
+		return appDescETag;
+	}
+
+	public String getAppDescLastModified() {
+		return appDescLastModified;
+	}
+
+	/**
+	 * @return the time in milliseconds at which the server was last asked for the app descriptor
+	 */
+	public long getAppDescCheckTime() {
+		return appDescCheckTime;
+	}
+
+	/**
+	 * Records that the app descriptor was checked with the server.
+	 * @param eTag validator sent by the server, may be null
+	 * @param lastModified validator sent by the server, may be null
+	 * @param checkTime
+	 */
+	public void updateAppDescValidators(String eTag, String lastModified, long checkTime) {
+		appDescETag = eTag;
+		appDescLastModified = lastModified;
+		appDescCheckTime = checkTime;
+	}
+
+	/**
+	 * @return true if every component in the app descriptor has been downloaded in its latest version
+	 */
+	public boolean isAppUpToDate() {
+		if (appDescriptor == null && !loadAppDesc()) {
+			return false;
+		}
+		for (ComponentDescriptor component : appDescriptor.getComponents()) {
+			if (component.getVersion().compareTo(getDownloadedVersion(component.getComponentName())) > 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
 	 * @return a list of the application's component descriptors
 	 */
 	public ArrayList<ComponentDescriptor> getAppComponents() {
-		if (appDescriptor == null) {
-			loadAppDesc();
+		if (appDescriptor == null && !loadAppDesc()) {
+			return new ArrayList<>();
 		}
 		return appDescriptor.getComponents();
 	}
 
+	/**
+	 * @param component
+	 * @return the file holding the most recently downloaded version of the component,
+	 * which may still be waiting in the update folder or in a pending generation.
+	 * It does not exist if the component has never been downloaded.
+	 */
+	public File getInstalledComponentFile(ComponentDescriptor component) {
+		File stagedFile = new File(UPDATE_FOLDER, component.getLocalURI().toString());
+		// A file kept by an update that did not finish is newer than the downloaded version
+		if (stagedFile.exists() && !incompleteVersions.containsKey(component.getComponentName())) {
+			return stagedFile;
+		}
+		return new File(generations.getLatestDirectory(), component.getLocalURI().toString());
+	}
+
 	/**
 	 * @return the last-known app descriptor
 	 */
@@ -239,35 +566,28 @@ public class StorageManager {
 	}
 
 	/**
-	 * @return the name of the app as shown in the app descriptor
+	 * @return the last-known app descriptor, followed by the mirrors listed in it
 	 */
-	public String getAppName() {
-		return appDescriptor.getAppName();
-	}
-
-	private static void moveAndReplaceExistingFiles(String source, String dest) throws IOException {
-		File destDir = new File(dest);
-		if (!destDir.exists()) {
-			destDir.mkdir();
-		}
-		File sourceDir = new File(source);
-		String[] items = sourceDir.list();
-		for (String item : items) {
-			File itemFile = new File(sourceDir, item);
-			File destItemFile = new File(destDir, item);
-			if (itemFile.isDirectory()) {
-				moveAndReplaceFolder(itemFile.toString(), destItemFile.toString());
-			} else {
-				Files.move(itemFile.toPath(), destItemFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	public ArrayList<URI> getServerAppDescSources() {
+		ArrayList<URI> sources = new ArrayList<>();
+		sources.add(getServerAppDescURI());
+		if (appDescriptor == null && appDescFile.exists()) {
+			appDescriptor = AppDescriptorLoader.load(appDescFile);
+		}
+		if (appDescriptor != null) {
+			for (URI mirror : appDescriptor.getMirrors()) {
+				if (!sources.contains(mirror)) {
+					sources.add(mirror);
+				}
 			}
 		}
+		return sources;
 	}
 
-	private static void moveAndReplaceFolder(String source, String dest) throws IOException {
-		File destDir = new File(dest);
-		if (destDir.exists()) {
-			remove(destDir);
-		}
-		Files.move(Paths.get(source), Paths.get(dest), StandardCopyOption.REPLACE_EXISTING);
+	/**
+	 * @return the name of the app as shown in the app descriptor
+	 */
+	public String getAppName() {
+		return appDescriptor.getAppName();
 	}
 }
@@ -2,20 +2,51 @@ package htlauncher.updater;
 
 import htlauncher.launcher.AppLauncher;
 import htlauncher.utilities.ComponentDescriptor;
+import htlauncher.utilities.PatchDescriptor;
 import htlauncher.utilities.Utilities;
 import htlauncher.utilities.Version;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A facade for the other components.
  */
 public class UpdateManager {
 
+	// Default number of components downloaded at the same time.
+	// A value of 1 downloads the components one after another.
+	public static final int DEFAULT_DOWNLOAD_WORKERS = 4;
+
+	// Default time in milliseconds after a check of the app descriptor during which
+	// the server is not asked again. 0 checks on every run.
+	public static final long DEFAULT_APP_DESC_TTL = 0;
+
+	// Default limits in bytes per second shared by all downloads, while nothing is
+	// running yet on the first run and while the application is open. 0 for no limit.
+	public static final long DEFAULT_FOREGROUND_RATE_LIMIT = 0;
+	public static final long DEFAULT_BACKGROUND_RATE_LIMIT = 1024 * 1024;
+
+	// Default limit in bytes per second for each download on its own; 0 for no limit
+	public static final long DEFAULT_DOWNLOAD_RATE_LIMIT = 0;
+
+	private static final String PATCH_SUFFIX = ".patch";
+	private static final String CHUNK_INDEX_SUFFIX = ".chunks";
+
 	private DownloadProgressDisplay downloadProgressDisplay;
 	private StorageManager storageManager;
 	private FileDownloader downloader;
@@ -24,12 +55,48 @@ public class UpdateManager {
 	private URI appDescURI;
 
 	// Will be set to true if an updated version of the application was found and downloaded.
-	private boolean applicationUpdated = false;
+	private volatile boolean applicationUpdated = false;
+
+	// Maximum number of components downloaded concurrently
+	private int downloadWorkers = DEFAULT_DOWNLOAD_WORKERS;
+
+	private long appDescTTL = DEFAULT_APP_DESC_TTL;
+
+	private volatile long foregroundRateLimit = DEFAULT_FOREGROUND_RATE_LIMIT;
+	private volatile long backgroundRateLimit = DEFAULT_BACKGROUND_RATE_LIMIT;
+	private volatile long downloadRateLimit = DEFAULT_DOWNLOAD_RATE_LIMIT;
+
+	// Set while updating with the application open
+	private volatile boolean backgroundUpdate = false;
+
+	// Earlier downloads of components, looked up by digest before downloading
+	private ArtifactStore artifactStore;
+
+	// Chunks of the installed components, built when a component is first synced by chunks
+	private ChunkStore localChunks;
+
+	// Ranks the locations of files that have mirrors
+	private MirrorSelector mirrorSelector;
+
+	// Base URI of a cache server on the local network, tried before the origin; may be null
+	private URI cacheServer;
+
+	// Bytes of the whole update, counted by the downloads of every component
+	private volatile DownloadProgress updateProgress;
+
+	// Components of the current update that have been downloaded and verified
+	private final List<ComponentDescriptor> updatedComponents = Collections.synchronizedList(new ArrayList<>());
+
+	// Decides which failed component downloads are tried again
+	private final RetryPolicy retryPolicy = new RetryPolicy();
 
 	public UpdateManager(String appDescPath) throws URISyntaxException {
 		downloadProgressDisplay = new DownloadProgressDisplay();
 		storageManager = new StorageManager(appDescPath);
 		downloader = new FileDownloader();
+		artifactStore = new ArtifactStore(new File(ArtifactStore.DEFAULT_STORE_FOLDER));
+		mirrorSelector = new MirrorSelector(storageManager.getMirrorStats(), storageManager::updateMirrorStats);
+		downloader.setMirrorSelector(mirrorSelector);
 		appDescURI = new URI(appDescPath);
 	}
 
@@ -42,6 +109,14 @@ public class UpdateManager {
 
 		// Invalidate the current version of the application
 		applicationUpdated = false;
+
+		backgroundUpdate = !firstRun;
+		applyRateLimit();
+
+		if (!firstRun && isAppDescFresh()) {
+			// Checked recently and nothing was left to download
+			return true;
+		}
 		
 		if (checkServerConnection()) {
 			if (firstRun) {
@@ -52,7 +127,7 @@ public class UpdateManager {
 
 			if (firstRun) {
 				downloadProgressDisplay.hideProgressWindow();
-				StorageManager.moveLastDownload();
+				storageManager.moveLastDownload();
 			} else if (applicationUpdated) {
 				Utilities.showMessageOnTop("Application updated", storageManager.getAppName()
 						+ " has been successfully updated. Restart application to get the latest update.");
@@ -68,8 +143,14 @@ public class UpdateManager {
 	 * @return true if successful
 	 */
 	private boolean runRequiredUpdate() {
+		boolean appDescChanged = true;
 		if (AppLauncher.UPDATE_APP_DESC) {
-			updateAppDesc();
+			appDescChanged = updateAppDesc();
+		}
+		if (!appDescChanged && storageManager.isAppUpToDate()) {
+			// Only the check time needs to be recorded
+			storageManager.saveUpdaterData();
+			return true;
 		}
 		boolean success = updateAppComponents();
 		return success;
@@ -77,17 +158,41 @@ public class UpdateManager {
 
 	/**
 	 * Updates the XML file containing the application descriptor.
-	 * Overwrites the current XML file.
+	 * Overwrites the current XML file if the descriptor changed on the server.
+	 * @return false if the server reported that the descriptor did not change
 	 */
-	public void updateAppDesc() {
+	public boolean updateAppDesc() {
 		URI serverURI = storageManager.getServerAppDescURI();
+		DownloadRequest request = new DownloadRequest(serverURI, appDescURI);
+		request.setSources(getSources(storageManager.getServerAppDescSources()));
+		if (storageManager.hasAppDesc()) {
+			request.setValidators(storageManager.getAppDescETag(), storageManager.getAppDescLastModified());
+		}
 
-		boolean success = startDownload(serverURI, appDescURI, true);
+		boolean success = startDownload(request, null);
 		if (success) {
+			storageManager.updateAppDescValidators(request.getETag(), request.getLastModified(),
+					System.currentTimeMillis());
+			if (request.isNotModified()) {
+				return false;
+			}
 			storageManager.loadAppDesc();
 		} else {
 			downloader.rollBack();
 		}
+		return true;
+	}
+
+	/**
+	 * @return true if the app descriptor was checked less than appDescTTL ago
+	 * and all of its components have been downloaded
+	 */
+	private boolean isAppDescFresh() {
+		if (appDescTTL <= 0) {
+			return false;
+		}
+		long sinceLastCheck = System.currentTimeMillis() - storageManager.getAppDescCheckTime();
+		return sinceLastCheck >= 0 && sinceLastCheck < appDescTTL && storageManager.isAppUpToDate();
 	}
 
 	/**
@@ -95,32 +200,205 @@ public class UpdateManager {
 	 * @return true if successful
 	 */
 	public boolean updateAppComponents() {
-		boolean success = true;
+		ArrayList<ComponentDescriptor> components = storageManager.getAppComponents();
+		boolean success;
+		localChunks = null;
+		updatedComponents.clear();
 
-		for (ComponentDescriptor component : storageManager.getAppComponents()) {
-			success = updateComponent(component);
-			if (!success) {
-				break;
-			}
+		Map<ComponentDescriptor, Long> sizes = getComponentSizes(getOutdatedComponents(components));
+		long totalSize = 0;
+		for (long size : sizes.values()) {
+			totalSize += Math.max(0, size);
+		}
+		if (!hasSpaceFor(totalSize)) {
+			return false;
+		}
+		updateProgress = new DownloadProgress();
+		updateProgress.setTotalDownloadBytes(totalSize);
+		downloadProgressDisplay.startProgressDisplay(updateProgress);
+
+		if (downloadWorkers > 1 && components.size() > 1) {
+			success = updateComponentsConcurrently(components, sizes);
+		} else {
+			success = updateComponentsSequentially(components, sizes);
 		}
+		updateProgress.setDownloadSuccess(success);
+		updateProgress.setDownloadCompleted(success);
 		
 		if (success) {
+			// Versions are only recorded once every component is in, so that the update is installed whole
+			synchronized (updatedComponents) {
+				for (ComponentDescriptor component : updatedComponents) {
+					storageManager.updateDownloadedVersion(component.getComponentName(), component.getVersion());
+				}
+			}
+			storageManager.clearIncompleteDownload();
 			storageManager.saveUpdaterData();
 			downloader.removeBackups();
+			if (applicationUpdated) {
+				storageManager.stageDownload();
+			}
 			return true;
 		} else {
+			// The components that made it are kept for the next update, which then only
+			// downloads the others. The app descriptor goes back to the installed one.
+			List<ComponentDescriptor> verified;
+			synchronized (updatedComponents) {
+				verified = new ArrayList<>(updatedComponents);
+			}
+			for (ComponentDescriptor component : verified) {
+				downloader.keepDownload(StorageManager.UPDATE_FOLDER + component.getLocalURI().toString());
+			}
 			downloader.rollBack();
+			storageManager.keepIncompleteDownload(verified);
+			storageManager.loadAppDesc();
+			// Asks for the app descriptor again next time, as the one on disk is older than the server's
+			storageManager.updateAppDescValidators(null, null, 0);
 			applicationUpdated = false;
 			return false;
 		}
 	}
 
+	private boolean updateComponentsSequentially(List<ComponentDescriptor> components,
+			Map<ComponentDescriptor, Long> sizes) {
+		boolean success = true;
+		for (ComponentDescriptor component : components) {
+			// The others are still updated after a failure, to be kept for the next update
+			success &= updateComponent(component, sizes.getOrDefault(component, -1L));
+		}
+		return success;
+	}
+
+	/**
+	 * Updates the components on a pool of downloadWorkers threads.
+	 * The others are still updated after a failure, to be kept for the next update.
+	 * @param components
+	 * @param sizes sizes of the components that are out of date
+	 * @return true if every component was updated
+	 */
+	private boolean updateComponentsConcurrently(List<ComponentDescriptor> components,
+			Map<ComponentDescriptor, Long> sizes) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(downloadWorkers, components.size()));
+		List<Future<Boolean>> results = new ArrayList<>();
+
+		for (ComponentDescriptor component : components) {
+			results.add(pool.submit(() -> updateComponent(component, sizes.getOrDefault(component, -1L))));
+		}
+		pool.shutdown();
+
+		boolean success = true;
+		for (Future<Boolean> result : results) {
+			try {
+				success &= result.get();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				success = false;
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				success = false;
+			}
+		}
+		return success;
+	}
+
+	/**
+	 * @return the components whose latest version has not been downloaded
+	 */
+	private List<ComponentDescriptor> getOutdatedComponents(List<ComponentDescriptor> components) {
+		List<ComponentDescriptor> outdated = new ArrayList<>();
+		for (ComponentDescriptor component : components) {
+			Version currentVersion = storageManager.getDownloadedVersion(component.getComponentName());
+			if (component.getVersion().compareTo(currentVersion) > 0) {
+				outdated.add(component);
+			}
+		}
+		return outdated;
+	}
+
+	/**
+	 * Finds out the size of each component, asking the servers at the same time
+	 * for the sizes the app descriptor does not give.
+	 * @param components
+	 * @return the size of each component, -1 where it could not be found out
+	 */
+	private Map<ComponentDescriptor, Long> getComponentSizes(List<ComponentDescriptor> components) {
+		Map<ComponentDescriptor, Long> sizes = new ConcurrentHashMap<>();
+		List<ComponentDescriptor> unknown = new ArrayList<>();
+		for (ComponentDescriptor component : components) {
+			if (component.getSize() >= 0) {
+				sizes.put(component, component.getSize());
+			} else {
+				unknown.add(component);
+			}
+		}
+		if (unknown.isEmpty()) {
+			return sizes;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(downloadWorkers, unknown.size()));
+		for (ComponentDescriptor component : unknown) {
+			pool.submit(() -> {
+				List<URI> sources = getSources(component.getSources());
+				long size = sources.isEmpty() ? -1 : HttpTransport.getShared().getContentLength(sources.get(0));
+				sizes.put(component, size);
+			});
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(FileDownloader.CONNECTION_TIMEOUT + FileDownloader.READ_CONNECTION_TIMEOUT,
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+		}
+		return sizes;
+	}
+
+	/**
+	 * Checks that the update fits on the disk before anything is downloaded.
+	 * @param bytes size of the files to download
+	 * @return false, after telling the user, if there is not enough space
+	 */
+	private boolean hasSpaceFor(long bytes) {
+		File folder = new File(StorageManager.UPDATE_FOLDER).getAbsoluteFile();
+		while (folder.getParentFile() != null && !folder.exists()) {
+			folder = folder.getParentFile();
+		}
+		long usable = folder.getUsableSpace();
+		// 0 means the space could not be found out
+		if (usable == 0 || bytes <= usable) {
+			return true;
+		}
+		Utilities.showWarning("Not enough disk space", "The update needs " + formatBytes(bytes)
+				+ " but only " + formatBytes(usable) + " is free. Free up some space and try again.");
+		return false;
+	}
+
+	private static String formatBytes(long bytes) {
+		return String.format("%.1f MB", bytes / (1024.0 * 1024));
+	}
+
 	/**
 	 * Updates a single component identified by the given component descriptor.
 	 * @param component
 	 * @return a boolean value indicating success.
 	 */
 	public boolean updateComponent(ComponentDescriptor component) {
+		boolean success = updateComponent(component, component.getSize());
+		if (success) {
+			storageManager.updateDownloadedVersion(component.getComponentName(), component.getVersion());
+		}
+		return success;
+	}
+
+	/**
+	 * Adds the component to the updated components of the current update if it was out of date.
+	 * @param component
+	 * @param size size of the component, counted towards the update's progress once it is updated
+	 * @return a boolean value indicating success.
+	 */
+	private boolean updateComponent(ComponentDescriptor component, long size) {
 		String name = component.getComponentName();
 		Version latestVersion = component.getVersion();
 		Version currentVersion = storageManager.getDownloadedVersion(name);
@@ -139,16 +417,311 @@ public class UpdateManager {
 				return false;
 			}
 
-			success = startDownload(component.getServerURI(), dlURI, true);
+			// Counts whatever is downloaded for the component, including patches and chunks
+			DownloadProgress componentProgress = new DownloadProgress(updateProgress);
+			componentProgress.setTotalDownloadBytes(size);
+
+			// Downloaded by an earlier update that did not finish
+			success = storageManager.hasIncompleteDownload(component)
+					&& verifyIncompleteDownload(createComponentRequest(component, dlURI, size), new File(compath));
+			if (!success) {
+				success = updateComponentFromStore(component, createComponentRequest(component, dlURI, size));
+			}
+			for (int attempt = 1; !success; attempt++) {
+				// Only the last attempt tells the user that it failed
+				boolean lastAttempt = attempt >= retryPolicy.getAttempts();
+				DownloadRequest request = createComponentRequest(component, dlURI, size);
+				request.setShowErrors(lastAttempt);
+
+				PatchDescriptor patch = component.getPatchFrom(currentVersion);
+				success = patch != null && updateComponentFromPatch(component, patch, request, componentProgress);
+				if (!success) {
+					success = updateComponentFromChunks(component, request, componentProgress);
+				}
+				if (!success) {
+					success = startDownload(request, componentProgress);
+				}
+				if (success) {
+					addToStore(component, new File(compath));
+				} else {
+					if (lastAttempt || !retryPolicy.isRetryable(request.getFailure())) {
+						break;
+					}
+					// The next attempt counts again whatever of the failed one it resumes from
+					componentProgress.setBytesDownloaded(0);
+					if (!waitBeforeRetry(attempt)) {
+						break;
+					}
+				}
+			}
 
 			if (success) {
-				storageManager.updateDownloadedVersion(name, latestVersion);
+				updatedComponents.add(component);
 				applicationUpdated = true;
+				// However it was updated, the component now counts as fully downloaded
+				if (size >= 0) {
+					componentProgress.setBytesDownloaded(size);
+				}
 			}
 		}
 		return success;
 	}
 
+	/**
+	 * Checks a component kept by an update that did not finish against its size and digest,
+	 * and deletes it if it does not match, so that it is downloaded again.
+	 * @return true if the kept file can be used
+	 */
+	private boolean verifyIncompleteDownload(DownloadRequest request, File file) {
+		try {
+			FileDownloader.verifyDownload(request, file, null);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			file.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * @param size size of the component, as reported by the server if the app descriptor does not give it
+	 * @return a request for the latest version of the component
+	 */
+	private DownloadRequest createComponentRequest(ComponentDescriptor component, URI destination, long size) {
+		DownloadRequest request = new DownloadRequest(component.getServerURI(), destination);
+		request.setSources(getSources(component.getSources()));
+		request.setExpectedSize(component.getSize());
+		request.setSizeHint(size);
+		request.setExpectedDigest(component.getDigest());
+		return request;
+	}
+
+	/**
+	 * Waits as long as the retry policy asks after a failed attempt.
+	 * @param attempt number of the attempt that failed, from 1
+	 * @return false if the wait was interrupted, in which case there is no further attempt
+	 */
+	private boolean waitBeforeRetry(int attempt) {
+		try {
+			Thread.sleep(retryPolicy.getDelay(attempt));
+			return true;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Sets the number of times a component is tried, including the first, before the update fails.
+	 * @param attempts 1 to never try again
+	 */
+	public void setRetryAttempts(int attempts) {
+		retryPolicy.setAttempts(attempts);
+	}
+
+	/**
+	 * Sets the wait before a component is tried again, which doubles with each further attempt.
+	 * @param millis
+	 */
+	public void setRetryDelay(long millis) {
+		retryPolicy.setDelay(millis);
+	}
+
+	/**
+	 * Sets the longest wait before a component is tried again.
+	 * @param millis
+	 */
+	public void setMaxRetryDelay(long millis) {
+		retryPolicy.setMaxDelay(millis);
+	}
+
+	/**
+	 * Sets the maximum number of components downloaded at the same time.
+	 * @param workers 1 for sequential downloads
+	 */
+	public void setDownloadWorkers(int workers) {
+		downloadWorkers = Math.max(1, workers);
+	}
+
+	/**
+	 * Sets the time after a check of the app descriptor during which the server is not asked again.
+	 * @param millis 0 to check on every run
+	 */
+	public void setAppDescTTL(long millis) {
+		appDescTTL = millis;
+	}
+
+	/**
+	 * Limits the rate of all downloads together on the first run, when the application
+	 * is not open yet. Takes effect immediately if such an update is running.
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	public void setForegroundRateLimit(long bytesPerSecond) {
+		foregroundRateLimit = bytesPerSecond;
+		applyRateLimit();
+	}
+
+	/**
+	 * Limits the rate of all downloads together while the application is open,
+	 * so that the update does not slow it down. Takes effect immediately if such an update is running.
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	public void setBackgroundRateLimit(long bytesPerSecond) {
+		backgroundRateLimit = bytesPerSecond;
+		applyRateLimit();
+	}
+
+	/**
+	 * Limits the rate of each download on its own, from the next download on.
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	public void setDownloadRateLimit(long bytesPerSecond) {
+		downloadRateLimit = bytesPerSecond;
+	}
+
+	private void applyRateLimit() {
+		downloader.setRateLimit(backgroundUpdate ? backgroundRateLimit : foregroundRateLimit);
+	}
+
+	/**
+	 * Sets the folder of the artifact store, which may be shared by several launchers.
+	 * @param folder null to not keep downloaded components
+	 */
+	public void setArtifactStore(File folder) {
+		artifactStore = folder == null ? null : new ArtifactStore(folder);
+	}
+
+	/**
+	 * Sets the size of the artifact store above which the least recently used components are deleted.
+	 * @param bytes
+	 */
+	public void setArtifactStoreMaxSize(long bytes) {
+		if (artifactStore != null) {
+			artifactStore.setMaxSize(bytes);
+		}
+	}
+
+	/**
+	 * Installs the latest version of a component from the artifact store.
+	 * Only used if the component's digest is known.
+	 * @param component
+	 * @param request destination and expected size of the component
+	 * @return true if the component was in the store and was installed
+	 */
+	private boolean updateComponentFromStore(ComponentDescriptor component, DownloadRequest request) {
+		if (artifactStore == null || component.getDigest() == null) {
+			return false;
+		}
+		File storedFile = artifactStore.find(component.getDigest(), component.getSize());
+		return storedFile != null && downloader.installFile(storedFile, request);
+	}
+
+	/**
+	 * Keeps a downloaded component, whose digest has been verified, in the artifact store.
+	 * Failing to do so does not affect the update.
+	 */
+	private void addToStore(ComponentDescriptor component, File file) {
+		if (artifactStore == null || component.getDigest() == null) {
+			return;
+		}
+		try {
+			artifactStore.add(file, component.getDigest());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Builds the latest version of a component by patching the installed version.
+	 * Only used if the component's digest is known, so that the result can be checked.
+	 * @param component
+	 * @param patch a patch from the installed version of the component
+	 * @param request destination and expected size and digest of the component
+	 * @return true if the component was updated
+	 */
+	private boolean updateComponentFromPatch(ComponentDescriptor component, PatchDescriptor patch,
+			DownloadRequest request, DownloadProgress componentProgress) {
+		File installedFile = storageManager.getInstalledComponentFile(component);
+		if (component.getDigest() == null || !installedFile.exists()) {
+			return false;
+		}
+
+		String patchPath = StorageManager.PATCH_FOLDER + component.getLocalURI().toString() + PATCH_SUFFIX;
+		File patchFile = new File(patchPath);
+		patchFile.getParentFile().mkdirs();
+		DownloadRequest patchRequest;
+		try {
+			patchRequest = new DownloadRequest(patch.getServerURI(), new URI(patchPath));
+		} catch (URISyntaxException e) {
+			e.printStackTrace();
+			return false;
+		}
+		patchRequest.setSources(getSources(Collections.singletonList(patch.getServerURI())));
+		patchRequest.setExpectedSize(patch.getSize());
+		patchRequest.setExpectedDigest(patch.getDigest());
+		patchRequest.setShowErrors(request.getShowErrors());
+		try {
+			return startDownload(patchRequest, componentProgress)
+					&& downloader.patchFile(installedFile, patchFile, request);
+		} finally {
+			patchFile.delete();
+		}
+	}
+
+	/**
+	 * Builds the latest version of a component from the chunks of the installed components,
+	 * downloading only the chunks that are missing.
+	 * Only used if the component's digest is known, so that the result can be checked.
+	 * @param component
+	 * @param request source, destination and expected size and digest of the component
+	 * @return true if the component was updated
+	 */
+	private boolean updateComponentFromChunks(ComponentDescriptor component, DownloadRequest request,
+			DownloadProgress componentProgress) {
+		if (component.getChunkIndexURI() == null || component.getDigest() == null) {
+			return false;
+		}
+
+		String indexPath = StorageManager.PATCH_FOLDER + component.getLocalURI().toString() + CHUNK_INDEX_SUFFIX;
+		File indexFile = new File(indexPath);
+		indexFile.getParentFile().mkdirs();
+		try {
+			DownloadRequest indexRequest = new DownloadRequest(component.getChunkIndexURI(), new URI(indexPath));
+			indexRequest.setSources(getSources(Collections.singletonList(component.getChunkIndexURI())));
+			indexRequest.setShowErrors(request.getShowErrors());
+			if (!startDownload(indexRequest, componentProgress)) {
+				return false;
+			}
+			ChunkIndex index;
+			try (InputStream input = new FileInputStream(indexFile)) {
+				index = ChunkIndex.read(input);
+			}
+			request.setRateLimit(downloadRateLimit);
+			DownloadProgress progress = new DownloadProgress(componentProgress);
+			return downloader.downloadChunked(request, index, getLocalChunks(), progress);
+		} catch (URISyntaxException | IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			indexFile.delete();
+		}
+	}
+
+	/**
+	 * @return the chunks of the latest installed version of every component
+	 */
+	private synchronized ChunkStore getLocalChunks() throws IOException {
+		if (localChunks == null) {
+			ChunkStore chunks = new ChunkStore();
+			for (ComponentDescriptor component : storageManager.getAppComponents()) {
+				chunks.addFile(storageManager.getInstalledComponentFile(component));
+			}
+			localChunks = chunks;
+		}
+		return localChunks;
+	}
+
 	public String getAppLaunchPath() {
 		return storageManager.getAppLaunchPath();
 	}
@@ -163,37 +736,74 @@ public class UpdateManager {
 
 	/**
 	 * Downloads a file, using the current progress display to show progress.
-	 * @param source
-	 * @param dest
-	 * @param showProgress
+	 * @param request
+	 * @param parent progress of the task the download is part of, which is then displayed
+	 * instead of the file's own; may be null
 	 * @return a boolean value indicating if the download was successful.
 	 */
-	private boolean startDownload(URI source, URI dest, boolean showProgress) {
-		DownloadProgress progress = new DownloadProgress();
-		if (showProgress) {
+	private boolean startDownload(DownloadRequest request, DownloadProgress parent) {
+		if (request.getRateLimit() == 0) {
+			request.setRateLimit(downloadRateLimit);
+		}
+		DownloadProgress progress = new DownloadProgress(parent);
+		if (parent == null) {
 			downloadProgressDisplay.startProgressDisplay(progress);
 		}
-		downloader.downloadFile(source, dest, progress);
+		downloader.downloadFile(request, progress);
 		return progress.getDownloadSuccess();
 	}
 
-	private boolean checkServerConnection() {
-		try {
-			String serverPath = storageManager.getServerAppDescURI().getHost();
-			if (serverPath == null) {
-				throw new MalformedURLException();
+	/**
+	 * Makes downloads go through a cache server on the local network, falling back to
+	 * the origin and its mirrors if the cache fails.
+	 * @param server base URI of the cache, such as http://cache:8321/; null to download from the origin
+	 */
+	public void setCacheServer(URI server) {
+		cacheServer = server;
+	}
+
+	/**
+	 * Orders the locations of a file for download: the cache server's copy of the first
+	 * location if there is a cache server, then the locations from the fastest mirror on.
+	 * @param sources the file's locations, the primary one first
+	 */
+	private List<URI> getSources(List<URI> sources) {
+		List<URI> ranked = mirrorSelector.rank(sources);
+		if (cacheServer != null && !sources.isEmpty()) {
+			// Keyed by the primary location, so that every client fills the same cache entry
+			URI cached = CacheServer.toCacheURI(cacheServer, sources.get(0));
+			if (cached != null) {
+				ranked.add(0, cached);
 			}
-			URL serverURL = new URL("http", serverPath, 80, "");
-			serverURL.openConnection().connect();
-			return true;
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
+		}
+		return ranked;
+	}
+
+	/**
+	 * Sets the time for which the result of probing a mirror is used before probing it again.
+	 * @param millis
+	 */
+	public void setMirrorProbeTTL(long millis) {
+		mirrorSelector.setProbeTTL(millis);
+	}
+
+	/**
+	 * Checks that the server holding the app descriptor, or one of its mirrors, can be reached.
+	 * The probe goes over the shared transport, so its connection is reused for the download.
+	 */
+	private boolean checkServerConnection() {
+		URI serverURI = storageManager.getServerAppDescURI();
+		if (serverURI.getHost() == null) {
 			Utilities.showError("Cache Corrupted",
 					"The application launcher's cache has been corrupted! Please delete "
 							+ StorageManager.UPDATER_INFO_FILEPATH);
 			return false;
-		} catch (IOException e) {
-			return false;
 		}
+		for (URI source : getSources(storageManager.getServerAppDescSources())) {
+			if (HttpTransport.getShared().probe(source)) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
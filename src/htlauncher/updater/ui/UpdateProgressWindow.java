@@ -4,6 +4,7 @@ import java.awt.Component;
 import java.awt.EventQueue;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -18,6 +19,12 @@ public class UpdateProgressWindow extends JFrame {
 	private JPanel contentPane;
 	private JProgressBar progressBar;
 	private JLabel progressDescription;
+	private JLabel progressDetail;
+
+	// Latest values from the download threads, shown by at most one queued repaint
+	private volatile int latestProgress = 0;
+	private volatile String latestDetail = "";
+	private final AtomicBoolean repaintQueued = new AtomicBoolean(false);
 	
 	protected static final int WIDTH = 450;
 	protected static final int HEIGHT = 150;
@@ -25,6 +32,7 @@ public class UpdateProgressWindow extends JFrame {
 	protected static final int PROGRESSBAR_HEIGHT = 50;
 	protected static final int DESCRIPTION_WIDTH = 300;
 	protected static final int DESCRIPTION_HEIGHT = 30;
+	protected static final int DETAIL_OFFSET = 55;
 	
 	public void setDisplayedText(String text){
 		SwingUtilities.invokeLater(new Runnable(){
@@ -48,21 +56,37 @@ public class UpdateProgressWindow extends JFrame {
 		});
 	}
 	
+	/**
+	 * Called from download threads, so it does not wait for the bar to be repainted.
+	 * Updates that arrive faster than the window repaints replace each other.
+	 * @param progress
+	 */
 	public void setProgress(int progress){
-		try {
-			SwingUtilities.invokeAndWait(new Runnable(){
-			    @Override
-			    public void run() {
-			    	progressBar.setValue(progress);
-			    }
-			});
-		} catch (InvocationTargetException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		latestProgress = Math.max(0, Math.min(100, progress));
+		queueRepaint();
+	}
+
+	/**
+	 * Sets the line under the description, such as the bytes downloaded and time left.
+	 * @param detail
+	 */
+	public void setDetail(String detail){
+		latestDetail = detail;
+		queueRepaint();
+	}
+
+	private void queueRepaint(){
+		if(!repaintQueued.compareAndSet(false, true)){
+			return;
 		}
+		SwingUtilities.invokeLater(new Runnable(){
+		    @Override
+		    public void run() {
+		    	repaintQueued.set(false);
+		    	progressBar.setValue(latestProgress);
+		    	progressDetail.setText(latestDetail);
+		    }
+		});
 	}
 	
 	/**
@@ -77,6 +101,7 @@ public class UpdateProgressWindow extends JFrame {
 					setupContentPane();
 					setupProgressBar();
 					setupProgressLabel();
+					setupDetailLabel();
 			    }
 			});
 		} catch (InvocationTargetException | InterruptedException e) {
@@ -117,4 +142,11 @@ public class UpdateProgressWindow extends JFrame {
 		contentPane.add(progressDescription);
 	}
 
+	private void setupDetailLabel(){
+		progressDetail = new JLabel();
+		progressDetail.setSize(DESCRIPTION_WIDTH, DESCRIPTION_HEIGHT);
+		centerComponentWithOffset(progressDetail, 0, DETAIL_OFFSET);
+		contentPane.add(progressDetail);
+	}
+
 }
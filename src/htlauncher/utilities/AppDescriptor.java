@@ -19,7 +19,7 @@ import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlSeeAlso;
 
 @XmlRootElement(name="application")
-@XmlSeeAlso({ComponentDescriptor.class})
+@XmlSeeAlso({ComponentDescriptor.class, Digest.class, PatchDescriptor.class, LaunchProfile.class})
 @XmlAccessorType(XmlAccessType.FIELD)
 public class AppDescriptor {
 	@XmlElement(name="mainJAR")
@@ -35,10 +35,29 @@ public class AppDescriptor {
 	@XmlElement(name="component")
 	private ArrayList<ComponentDescriptor> components;
 	
+	// Optional other locations of this descriptor
+	@XmlElementWrapper(name="mirrors")
+	@XmlElement(name="mirror")
+	private ArrayList<URI> mirrors;
+
+	// Optional ways to start the app, of which the first one the machine qualifies for is used
+	@XmlElementWrapper(name="launchProfiles")
+	@XmlElement(name="profile")
+	private ArrayList<LaunchProfile> launchProfiles;
+
+	// Creating a JAXBContext is expensive, so a single one is shared
+	private static JAXBContext context;
+	
+	private static synchronized JAXBContext getContext() throws JAXBException {
+		if (context == null) {
+			context = JAXBContext.newInstance(AppDescriptor.class, ComponentDescriptor.class);
+		}
+		return context;
+	}
+	
 	public String serialiseToXML(){
 		try {
-			JAXBContext context = JAXBContext.newInstance(AppDescriptor.class, ComponentDescriptor.class);
-			Marshaller marshaller = context.createMarshaller();
+			Marshaller marshaller = getContext().createMarshaller();
 			
 			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
 			ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -56,11 +75,15 @@ public class AppDescriptor {
 		return  "";
 	}
 	
+	/**
+	 * Reads the descriptor with JAXB.
+	 * AppDescriptorLoader is faster for loading the descriptor at start-up.
+	 * @param file
+	 * @return the descriptor, or null if it cannot be read
+	 */
 	public static AppDescriptor unserialiseFromXMLFile(File file){
-		JAXBContext context;
 		try {
-			context = JAXBContext.newInstance(AppDescriptor.class, ComponentDescriptor.class);
-			Unmarshaller unmarshaller = context.createUnmarshaller();
+			Unmarshaller unmarshaller = getContext().createUnmarshaller();
 			
 			AppDescriptor desc = (AppDescriptor)unmarshaller.unmarshal(file);
 			return desc;
@@ -102,4 +125,24 @@ public class AppDescriptor {
 		this.components = components;
 	}
 	
+	public ArrayList<URI> getMirrors(){
+		if (mirrors == null) {
+			return new ArrayList<>();
+		}
+		return mirrors;
+	}
+	public void setMirrors(ArrayList<URI> mirrors){
+		this.mirrors = mirrors;
+	}
+	
+	public ArrayList<LaunchProfile> getLaunchProfiles(){
+		if (launchProfiles == null) {
+			return new ArrayList<>();
+		}
+		return launchProfiles;
+	}
+	public void setLaunchProfiles(ArrayList<LaunchProfile> launchProfiles){
+		this.launchProfiles = launchProfiles;
+	}
+	
 }
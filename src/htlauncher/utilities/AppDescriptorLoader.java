@@ -0,0 +1,525 @@
+package htlauncher.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Loads the app descriptor without starting JAXB.
+ * The XML file is read with a streaming parser, and the result is kept in a binary
+ * snapshot next to it that is used instead until the XML file changes.
+ */
+public class AppDescriptorLoader {
+	public static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+	private static final int SNAPSHOT_MAGIC = 0x48544453;
+	// Increase whenever the snapshot layout changes, so that old snapshots are rebuilt
+	private static final int SNAPSHOT_FORMAT = 4;
+
+	/**
+	 * @param xmlFile
+	 * @return the descriptor in the file, or null if it cannot be read
+	 */
+	public static AppDescriptor load(File xmlFile) {
+		File snapshotFile = new File(xmlFile.getPath() + SNAPSHOT_SUFFIX);
+		AppDescriptor descriptor = readSnapshot(snapshotFile, xmlFile);
+		if (descriptor != null) {
+			return descriptor;
+		}
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(xmlFile))) {
+			descriptor = parse(in);
+		} catch (IOException | XMLStreamException | URISyntaxException | NumberFormatException e) {
+			e.printStackTrace();
+			// Let JAXB have a go at anything the streaming parser does not handle
+			descriptor = AppDescriptor.unserialiseFromXMLFile(xmlFile);
+		}
+		if (descriptor != null) {
+			writeSnapshot(snapshotFile, xmlFile, descriptor);
+		}
+		return descriptor;
+	}
+
+	/**
+	 * Parses an app descriptor document.
+	 */
+	public static AppDescriptor parse(InputStream in) throws XMLStreamException, URISyntaxException {
+		XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+		try {
+			reader.nextTag();
+			requireElement(reader, "application");
+			return parseApplication(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static AppDescriptor parseApplication(XMLStreamReader reader)
+			throws XMLStreamException, URISyntaxException {
+		AppDescriptor descriptor = new AppDescriptor();
+		descriptor.setserverAppDescriptorURI(toURI(reader.getAttributeValue(null, "URI")));
+		descriptor.setAppName(reader.getAttributeValue(null, "appName"));
+		ArrayList<ComponentDescriptor> components = new ArrayList<>();
+
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (reader.getLocalName()) {
+			case "mainJAR":
+				descriptor.setLaunchPath(toURI(reader.getElementText()));
+				break;
+			case "components":
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					requireElement(reader, "component");
+					components.add(parseComponent(reader));
+				}
+				break;
+			case "mirrors":
+				descriptor.setMirrors(parseMirrors(reader));
+				break;
+			case "launchProfiles":
+				ArrayList<LaunchProfile> profiles = new ArrayList<>();
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					requireElement(reader, "profile");
+					profiles.add(parseLaunchProfile(reader));
+				}
+				descriptor.setLaunchProfiles(profiles);
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+		descriptor.setComponents(components);
+		return descriptor;
+	}
+
+	private static ComponentDescriptor parseComponent(XMLStreamReader reader)
+			throws XMLStreamException, URISyntaxException {
+		ComponentDescriptor component = new ComponentDescriptor();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (reader.getLocalName()) {
+			case "name":
+				component.setName(reader.getElementText());
+				break;
+			case "localURI":
+				component.setLocalURI(toURI(reader.getElementText()));
+				break;
+			case "serverURI":
+				component.setServerURI(toURI(reader.getElementText()));
+				break;
+			case "version":
+				component.setVersion(parseVersion(reader));
+				break;
+			case "size":
+				component.setSize(Long.parseLong(reader.getElementText().trim()));
+				break;
+			case "digest":
+				component.setDigest(parseDigest(reader));
+				break;
+			case "patches":
+				ArrayList<PatchDescriptor> patches = new ArrayList<>();
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					requireElement(reader, "patch");
+					patches.add(parsePatch(reader));
+				}
+				component.setPatches(patches);
+				break;
+			case "chunkIndex":
+				component.setChunkIndexURI(toURI(reader.getElementText()));
+				break;
+			case "mirrors":
+				component.setMirrors(parseMirrors(reader));
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+		return component;
+	}
+
+	private static ArrayList<URI> parseMirrors(XMLStreamReader reader)
+			throws XMLStreamException, URISyntaxException {
+		ArrayList<URI> mirrors = new ArrayList<>();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			requireElement(reader, "mirror");
+			mirrors.add(toURI(reader.getElementText()));
+		}
+		return mirrors;
+	}
+
+	private static LaunchProfile parseLaunchProfile(XMLStreamReader reader) throws XMLStreamException {
+		LaunchProfile profile = new LaunchProfile();
+		profile.setName(reader.getAttributeValue(null, "name"));
+		String minCores = reader.getAttributeValue(null, "minCores");
+		if (minCores != null) {
+			profile.setMinCores(Integer.parseInt(minCores.trim()));
+		}
+		String minMemory = reader.getAttributeValue(null, "minMemoryMB");
+		if (minMemory != null) {
+			profile.setMinMemoryMB(Long.parseLong(minMemory.trim()));
+		}
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (reader.getLocalName()) {
+			case "jvmOptions":
+				profile.setJvmOptions(parseStrings(reader, "option"));
+				break;
+			case "environment":
+				ArrayList<LaunchProfile.Variable> environment = new ArrayList<>();
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					requireElement(reader, "variable");
+					String name = reader.getAttributeValue(null, "name");
+					environment.add(new LaunchProfile.Variable(name, reader.getElementText()));
+				}
+				profile.setEnvironment(environment);
+				break;
+			case "arguments":
+				profile.setArguments(parseStrings(reader, "argument"));
+				break;
+			case "workingDirectory":
+				profile.setWorkingDirectory(reader.getElementText().trim());
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+		return profile;
+	}
+
+	/**
+	 * Reads the text of each child element, which are all expected to have the given name.
+	 * Options and arguments are kept as they are written, with surrounding whitespace removed.
+	 */
+	private static ArrayList<String> parseStrings(XMLStreamReader reader, String elementName)
+			throws XMLStreamException {
+		ArrayList<String> values = new ArrayList<>();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			requireElement(reader, elementName);
+			values.add(reader.getElementText().trim());
+		}
+		return values;
+	}
+
+	private static PatchDescriptor parsePatch(XMLStreamReader reader)
+			throws XMLStreamException, URISyntaxException {
+		PatchDescriptor patch = new PatchDescriptor();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (reader.getLocalName()) {
+			case "fromVersion":
+				patch.setFromVersion(parseVersion(reader));
+				break;
+			case "serverURI":
+				patch.setServerURI(toURI(reader.getElementText()));
+				break;
+			case "size":
+				patch.setSize(Long.parseLong(reader.getElementText().trim()));
+				break;
+			case "digest":
+				patch.setDigest(parseDigest(reader));
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+		return patch;
+	}
+
+	private static Version parseVersion(XMLStreamReader reader) throws XMLStreamException {
+		Version version = new Version();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (reader.getLocalName()) {
+			case "major":
+				version.setMajor(Integer.parseInt(reader.getElementText().trim()));
+				break;
+			case "minor":
+				version.setMinor(Integer.parseInt(reader.getElementText().trim()));
+				break;
+			case "patch":
+				version.setPatch(Integer.parseInt(reader.getElementText().trim()));
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+		return version;
+	}
+
+	private static Digest parseDigest(XMLStreamReader reader) throws XMLStreamException {
+		Digest digest = new Digest();
+		String algorithm = reader.getAttributeValue(null, "algorithm");
+		if (algorithm != null) {
+			digest.setAlgorithm(algorithm);
+		}
+		digest.setValue(reader.getElementText().trim());
+		return digest;
+	}
+
+	private static void requireElement(XMLStreamReader reader, String name) throws XMLStreamException {
+		if (!name.equals(reader.getLocalName())) {
+			throw new XMLStreamException("Expected <" + name + "> but found <"
+					+ reader.getLocalName() + ">", reader.getLocation());
+		}
+	}
+
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private static URI toURI(String value) throws URISyntaxException {
+		return value == null ? null : new URI(value.trim());
+	}
+
+	/**
+	 * @return the descriptor in the snapshot, or null if there is no snapshot
+	 * of the current XML file
+	 */
+	private static AppDescriptor readSnapshot(File snapshotFile, File xmlFile) {
+		if (!snapshotFile.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_FORMAT
+					|| in.readLong() != xmlFile.length() || in.readLong() != xmlFile.lastModified()) {
+				return null;
+			}
+			return readDescriptor(in);
+		} catch (IOException | URISyntaxException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces the snapshot atomically, so that a reader never sees a partial one.
+	 */
+	private static void writeSnapshot(File snapshotFile, File xmlFile, AppDescriptor descriptor) {
+		File tempFile = new File(snapshotFile.getPath() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_FORMAT);
+				out.writeLong(xmlFile.length());
+				out.writeLong(xmlFile.lastModified());
+				writeDescriptor(out, descriptor);
+			}
+			Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+		}
+	}
+
+	private static void writeDescriptor(DataOutputStream out, AppDescriptor descriptor) throws IOException {
+		writeString(out, descriptor.getAppName());
+		writeURI(out, descriptor.getServerAppDescriptorURI());
+		writeURI(out, descriptor.getLaunchPath());
+		writeURIs(out, descriptor.getMirrors());
+		writeLaunchProfiles(out, descriptor.getLaunchProfiles());
+		ArrayList<ComponentDescriptor> components = descriptor.getComponents();
+		out.writeInt(components == null ? 0 : components.size());
+		if (components == null) {
+			return;
+		}
+		for (ComponentDescriptor component : components) {
+			writeString(out, component.getComponentName());
+			writeURI(out, component.getLocalURI());
+			writeURI(out, component.getServerURI());
+			writeVersion(out, component.getVersion());
+			out.writeLong(component.getSize());
+			writeDigest(out, component.getDigest());
+			out.writeInt(component.getPatches().size());
+			for (PatchDescriptor patch : component.getPatches()) {
+				writeVersion(out, patch.getFromVersion());
+				writeURI(out, patch.getServerURI());
+				out.writeLong(patch.getSize());
+				writeDigest(out, patch.getDigest());
+			}
+			writeURI(out, component.getChunkIndexURI());
+			writeURIs(out, component.getMirrors());
+		}
+	}
+
+	private static AppDescriptor readDescriptor(DataInputStream in) throws IOException, URISyntaxException {
+		AppDescriptor descriptor = new AppDescriptor();
+		descriptor.setAppName(readString(in));
+		descriptor.setserverAppDescriptorURI(readURI(in));
+		descriptor.setLaunchPath(readURI(in));
+		descriptor.setMirrors(readURIs(in));
+		descriptor.setLaunchProfiles(readLaunchProfiles(in));
+		int componentCount = in.readInt();
+		ArrayList<ComponentDescriptor> components = new ArrayList<>(componentCount);
+		for (int i = 0; i < componentCount; i++) {
+			ComponentDescriptor component = new ComponentDescriptor();
+			component.setName(readString(in));
+			component.setLocalURI(readURI(in));
+			component.setServerURI(readURI(in));
+			component.setVersion(readVersion(in));
+			component.setSize(in.readLong());
+			component.setDigest(readDigest(in));
+			int patchCount = in.readInt();
+			if (patchCount > 0) {
+				ArrayList<PatchDescriptor> patches = new ArrayList<>(patchCount);
+				for (int j = 0; j < patchCount; j++) {
+					PatchDescriptor patch = new PatchDescriptor();
+					patch.setFromVersion(readVersion(in));
+					patch.setServerURI(readURI(in));
+					patch.setSize(in.readLong());
+					patch.setDigest(readDigest(in));
+					patches.add(patch);
+				}
+				component.setPatches(patches);
+			}
+			component.setChunkIndexURI(readURI(in));
+			component.setMirrors(readURIs(in));
+			components.add(component);
+		}
+		descriptor.setComponents(components);
+		return descriptor;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeURI(DataOutputStream out, URI value) throws IOException {
+		writeString(out, value == null ? null : value.toString());
+	}
+
+	private static URI readURI(DataInputStream in) throws IOException, URISyntaxException {
+		return toURI(readString(in));
+	}
+
+	private static void writeURIs(DataOutputStream out, ArrayList<URI> values) throws IOException {
+		out.writeInt(values.size());
+		for (URI value : values) {
+			writeURI(out, value);
+		}
+	}
+
+	private static ArrayList<URI> readURIs(DataInputStream in) throws IOException, URISyntaxException {
+		int count = in.readInt();
+		if (count == 0) {
+			return null;
+		}
+		ArrayList<URI> values = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			values.add(readURI(in));
+		}
+		return values;
+	}
+
+	private static void writeLaunchProfiles(DataOutputStream out, ArrayList<LaunchProfile> profiles)
+			throws IOException {
+		out.writeInt(profiles.size());
+		for (LaunchProfile profile : profiles) {
+			writeString(out, profile.getName());
+			out.writeInt(profile.getMinCores());
+			out.writeLong(profile.getMinMemoryMB());
+			writeStrings(out, profile.getJvmOptions());
+			out.writeInt(profile.getEnvironment().size());
+			for (LaunchProfile.Variable variable : profile.getEnvironment()) {
+				writeString(out, variable.getName());
+				writeString(out, variable.getValue());
+			}
+			writeStrings(out, profile.getArguments());
+			writeString(out, profile.getWorkingDirectory());
+		}
+	}
+
+	private static ArrayList<LaunchProfile> readLaunchProfiles(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count == 0) {
+			return null;
+		}
+		ArrayList<LaunchProfile> profiles = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			LaunchProfile profile = new LaunchProfile();
+			profile.setName(readString(in));
+			profile.setMinCores(in.readInt());
+			profile.setMinMemoryMB(in.readLong());
+			profile.setJvmOptions(readStrings(in));
+			int variableCount = in.readInt();
+			ArrayList<LaunchProfile.Variable> environment = new ArrayList<>(variableCount);
+			for (int j = 0; j < variableCount; j++) {
+				environment.add(new LaunchProfile.Variable(readString(in), readString(in)));
+			}
+			profile.setEnvironment(environment);
+			profile.setArguments(readStrings(in));
+			profile.setWorkingDirectory(readString(in));
+			profiles.add(profile);
+		}
+		return profiles;
+	}
+
+	private static void writeStrings(DataOutputStream out, ArrayList<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			writeString(out, value);
+		}
+	}
+
+	private static ArrayList<String> readStrings(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		ArrayList<String> values = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			values.add(readString(in));
+		}
+		return values;
+	}
+
+	private static void writeVersion(DataOutputStream out, Version version) throws IOException {
+		out.writeBoolean(version != null);
+		if (version != null) {
+			out.writeInt(version.getMajor());
+			out.writeInt(version.getMinor());
+			out.writeInt(version.getPatch());
+		}
+	}
+
+	private static Version readVersion(DataInputStream in) throws IOException {
+		return in.readBoolean() ? new Version(in.readInt(), in.readInt(), in.readInt()) : null;
+	}
+
+	private static void writeDigest(DataOutputStream out, Digest digest) throws IOException {
+		out.writeBoolean(digest != null);
+		if (digest != null) {
+			writeString(out, digest.getAlgorithm());
+			writeString(out, digest.getValue());
+		}
+	}
+
+	private static Digest readDigest(DataInputStream in) throws IOException {
+		return in.readBoolean() ? new Digest(readString(in), readString(in)) : null;
+	}
+}
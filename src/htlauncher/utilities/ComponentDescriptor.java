@@ -1,20 +1,41 @@
 package htlauncher.utilities;
 
 import java.net.URI;
+import java.util.ArrayList;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlSeeAlso;
 
 @XmlRootElement(name="component")
-@XmlSeeAlso({Version.class})
+@XmlSeeAlso({Version.class, Digest.class, PatchDescriptor.class})
 @XmlAccessorType(XmlAccessType.FIELD)
 public class ComponentDescriptor {
 	private String name;
 	private URI localURI;
 	private URI serverURI;
 	private Version version;
+
+	// Optional; used to verify the downloaded file
+	private Long size;
+	private Digest digest;
+
+	// Optional patches from earlier versions to this version
+	@XmlElementWrapper(name="patches")
+	@XmlElement(name="patch")
+	private ArrayList<PatchDescriptor> patches;
+
+	// Optional location of the chunk index of the component's file
+	@XmlElement(name="chunkIndex")
+	private URI chunkIndexURI;
+
+	// Optional other locations of the same file, tried when serverURI is slow or unavailable
+	@XmlElementWrapper(name="mirrors")
+	@XmlElement(name="mirror")
+	private ArrayList<URI> mirrors;
 	
 	public String getComponentName(){
 		return name;
@@ -48,5 +69,88 @@ public class ComponentDescriptor {
 		this.serverURI = server;
 	}
 	
+	/**
+	 * @return the expected size of the component's file in bytes, or -1 if unknown
+	 */
+	public long getSize(){
+		return size == null ? -1 : size;
+	}
+	
+	public void setSize(long size){
+		this.size = size < 0 ? null : size;
+	}
+	
+	/**
+	 * @return the expected digest of the component's file, or null if unknown
+	 */
+	public Digest getDigest(){
+		return digest;
+	}
+	
+	public void setDigest(Digest digest){
+		this.digest = digest;
+	}
+	
+	public ArrayList<PatchDescriptor> getPatches(){
+		if (patches == null) {
+			return new ArrayList<>();
+		}
+		return patches;
+	}
+	
+	public void setPatches(ArrayList<PatchDescriptor> patches){
+		this.patches = patches;
+	}
+	
+	/**
+	 * @param version
+	 * @return the patch from the given version to this version, or null if there is none
+	 */
+	public PatchDescriptor getPatchFrom(Version version){
+		for (PatchDescriptor patch : getPatches()) {
+			if (version.equals(patch.getFromVersion())) {
+				return patch;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the location of the chunk index of the component's file on the server, or null if there is none
+	 */
+	public URI getChunkIndexURI(){
+		return chunkIndexURI;
+	}
+	
+	public void setChunkIndexURI(URI chunkIndexURI){
+		this.chunkIndexURI = chunkIndexURI;
+	}
+	
+	public ArrayList<URI> getMirrors(){
+		if (mirrors == null) {
+			return new ArrayList<>();
+		}
+		return mirrors;
+	}
+	
+	public void setMirrors(ArrayList<URI> mirrors){
+		this.mirrors = mirrors;
+	}
+	
+	/**
+	 * @return serverURI followed by the mirrors
+	 */
+	public ArrayList<URI> getSources(){
+		ArrayList<URI> sources = new ArrayList<>();
+		if (serverURI != null) {
+			sources.add(serverURI);
+		}
+		for (URI mirror : getMirrors()) {
+			if (!sources.contains(mirror)) {
+				sources.add(mirror);
+			}
+		}
+		return sources;
+	}
 
 }
@@ -0,0 +1,75 @@
+package htlauncher.utilities;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlValue;
+
+/**
+ * Expected message digest of a file, written as a hex string.
+ */
+@XmlRootElement(name="digest")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Digest {
+	public static final String DEFAULT_ALGORITHM = "SHA-256";
+
+	@XmlAttribute(name = "algorithm")
+	private String algorithm = DEFAULT_ALGORITHM;
+
+	@XmlValue
+	private String value;
+
+	public Digest() {
+	}
+
+	public Digest(String algorithm, String value) {
+		this.algorithm = algorithm;
+		this.value = value;
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public void setAlgorithm(String algorithm) {
+		this.algorithm = algorithm;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	public MessageDigest createMessageDigest() throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance(algorithm);
+	}
+
+	/**
+	 * @param digest the result of a MessageDigest created by createMessageDigest
+	 * @return true if it is the expected digest
+	 */
+	public boolean matches(byte[] digest) {
+		return value != null && value.trim().equalsIgnoreCase(toHex(digest));
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			result.append(Character.forDigit((b >> 4) & 0xF, 16));
+			result.append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
+	@Override
+	public String toString() {
+		return algorithm + ":" + value;
+	}
+}
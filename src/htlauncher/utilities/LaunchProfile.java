@@ -0,0 +1,157 @@
+package htlauncher.utilities;
+
+import java.util.ArrayList;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlValue;
+
+/**
+ * How the app is started: options for its JVM, environment variables, arguments and working
+ * directory. A profile may be limited to machines with at least a number of cores or an
+ * amount of memory, so that a release can ship settings tuned for different machines.
+ */
+@XmlRootElement(name="profile")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class LaunchProfile {
+
+	/**
+	 * An environment variable set for the app.
+	 */
+	@XmlAccessorType(XmlAccessType.FIELD)
+	public static class Variable {
+		@XmlAttribute(name = "name")
+		private String name;
+
+		@XmlValue
+		private String value;
+
+		public Variable() {
+		}
+
+		public Variable(String name, String value) {
+			this.name = name;
+			this.value = value;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getValue() {
+			return value;
+		}
+	}
+
+	@XmlAttribute(name = "name")
+	private String name;
+
+	// Optional; the profile is only used on machines that have at least these
+	@XmlAttribute(name = "minCores")
+	private Integer minCores;
+
+	@XmlAttribute(name = "minMemoryMB")
+	private Long minMemoryMB;
+
+	@XmlElementWrapper(name="jvmOptions")
+	@XmlElement(name="option")
+	private ArrayList<String> jvmOptions;
+
+	@XmlElementWrapper(name="environment")
+	@XmlElement(name="variable")
+	private ArrayList<Variable> environment;
+
+	@XmlElementWrapper(name="arguments")
+	@XmlElement(name="argument")
+	private ArrayList<String> arguments;
+
+	// Optional; relative to the launcher's folder
+	private String workingDirectory;
+
+	public String getName(){
+		return name;
+	}
+
+	public void setName(String name){
+		this.name = name;
+	}
+
+	/**
+	 * @return the fewest cores a machine must have to use the profile, or 0 if any will do
+	 */
+	public int getMinCores(){
+		return minCores == null ? 0 : minCores;
+	}
+
+	public void setMinCores(int cores){
+		this.minCores = cores <= 0 ? null : cores;
+	}
+
+	/**
+	 * @return the least physical memory in MB a machine must have to use the profile, or 0 if any will do
+	 */
+	public long getMinMemoryMB(){
+		return minMemoryMB == null ? 0 : minMemoryMB;
+	}
+
+	public void setMinMemoryMB(long memoryMB){
+		this.minMemoryMB = memoryMB <= 0 ? null : memoryMB;
+	}
+
+	/**
+	 * @param cores
+	 * @param memoryMB physical memory of the machine, or -1 if unknown
+	 * @return true if a machine with the given cores and memory may use the profile
+	 */
+	public boolean matches(int cores, long memoryMB){
+		return cores >= getMinCores() && (getMinMemoryMB() == 0 || memoryMB >= getMinMemoryMB());
+	}
+
+	public ArrayList<String> getJvmOptions(){
+		if (jvmOptions == null) {
+			return new ArrayList<>();
+		}
+		return jvmOptions;
+	}
+
+	public void setJvmOptions(ArrayList<String> options){
+		this.jvmOptions = options;
+	}
+
+	public ArrayList<Variable> getEnvironment(){
+		if (environment == null) {
+			return new ArrayList<>();
+		}
+		return environment;
+	}
+
+	public void setEnvironment(ArrayList<Variable> environment){
+		this.environment = environment;
+	}
+
+	public ArrayList<String> getArguments(){
+		if (arguments == null) {
+			return new ArrayList<>();
+		}
+		return arguments;
+	}
+
+	public void setArguments(ArrayList<String> arguments){
+		this.arguments = arguments;
+	}
+
+	/**
+	 * @return the folder to start the app in, or null to start it in the launcher's folder
+	 */
+	public String getWorkingDirectory(){
+		return workingDirectory;
+	}
+
+	public void setWorkingDirectory(String workingDirectory){
+		this.workingDirectory = workingDirectory;
+	}
+}
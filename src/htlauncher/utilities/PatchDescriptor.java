@@ -0,0 +1,61 @@
+package htlauncher.utilities;
+
+import java.net.URI;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlSeeAlso;
+
+/**
+ * A binary patch that turns one earlier version of a component into its current version.
+ */
+@XmlRootElement(name="patch")
+@XmlSeeAlso({Version.class, Digest.class})
+@XmlAccessorType(XmlAccessType.FIELD)
+public class PatchDescriptor {
+	private Version fromVersion;
+	private URI serverURI;
+
+	// Optional; used to verify the downloaded patch
+	private Long size;
+	private Digest digest;
+
+	public Version getFromVersion(){
+		return fromVersion;
+	}
+
+	public void setFromVersion(Version version){
+		this.fromVersion = version;
+	}
+
+	public URI getServerURI(){
+		return serverURI;
+	}
+
+	public void setServerURI(URI server){
+		this.serverURI = server;
+	}
+
+	/**
+	 * @return the expected size of the patch in bytes, or -1 if unknown
+	 */
+	public long getSize(){
+		return size == null ? -1 : size;
+	}
+
+	public void setSize(long size){
+		this.size = size < 0 ? null : size;
+	}
+
+	/**
+	 * @return the expected digest of the patch, or null if unknown
+	 */
+	public Digest getDigest(){
+		return digest;
+	}
+
+	public void setDigest(Digest digest){
+		this.digest = digest;
+	}
+}
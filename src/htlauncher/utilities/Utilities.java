@@ -1,6 +1,7 @@
 package htlauncher.utilities;
 
 import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
 
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
@@ -23,6 +24,10 @@ public class Utilities {
 	}
 	
 	private static void showDialogWindow(String title, String message, int dialogType){
+		if(GraphicsEnvironment.isHeadless()){
+			printMessage(title, message);
+			return;
+		}
 		JFrame frame = new JFrame();
 		JOptionPane.showMessageDialog(frame,
 			    message,
@@ -31,6 +36,10 @@ public class Utilities {
 	}
 	
 	private static void showTopDialogWindow(String title, String message, int dialogType){
+		if(GraphicsEnvironment.isHeadless()){
+			printMessage(title, message);
+			return;
+		}
 		JFrame frame = new JFrame();
 		if(frame.getState() != Frame.NORMAL){
 			frame.setState(Frame.NORMAL);
@@ -42,6 +51,13 @@ public class Utilities {
 			    dialogType);
 	}
 	
+	/**
+	 * Without a display, such as on a server or in a benchmark, messages go to the error stream.
+	 */
+	private static void printMessage(String title, String message){
+		System.err.println(title + ": " + message);
+	}
+	
 	public static void showFatalErrorDialog(Exception e){
 		Utilities.showError("Fatal Error", "A fatal error has occured. "
 				+ e.getMessage()